@@ -4,6 +4,8 @@ import java.awt.BorderLayout;
 import java.awt.Font;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.net.Socket;
@@ -21,6 +23,7 @@ import smtp.client.FilePanel;
 import smtp.client.VideoCallPanel;
 import smtp.mail.MailSender;
 import smtp.server.FileServer;
+import smtp.server.FrameCodec;
 
 /**
  * Client main UI with bottom tabs. On startup asks for name and opens control connection.
@@ -38,6 +41,10 @@ public class MainFrame extends JFrame {
     private MailSender mailSender;
     private JLabel statusLabel;
 
+    // presence state, only touched by the control listener thread
+    private long rosterVersion = -1;
+    private boolean rosterSyncPending = true;
+
     public MainFrame(String serverHost, int controlPort, String username) throws Exception {
         this.loggedInUser = username;
         
@@ -48,11 +55,14 @@ public class MainFrame extends JFrame {
 
         // connect control socket
         Socket controlSocket = new Socket(serverHost, controlPort);
-        controlOut = new DataOutputStream(controlSocket.getOutputStream());
-        controlIn = new DataInputStream(controlSocket.getInputStream());
-
-        // send name
-        controlOut.writeUTF(clientName);
+        controlSocket.setTcpNoDelay(true);
+        // buffered both ways: each frame + flush is one send, each read rarely a syscall
+        controlOut = new DataOutputStream(new BufferedOutputStream(controlSocket.getOutputStream()));
+        controlIn = new DataInputStream(new BufferedInputStream(controlSocket.getInputStream()));
+
+        // switch to binary frames and send name; server answers HELLO, then a versioned ROSTER + JOIN/LEAVE deltas
+        controlOut.writeUTF(FrameCodec.HANDSHAKE);
+        FrameCodec.write(controlOut, FrameCodec.encode(FrameCodec.HELLO, FrameCodec.VERSION, clientName));
         controlOut.flush();
 
         setTitle("Mail & Chat System - " + loggedInUser);
@@ -134,6 +144,7 @@ public class MainFrame extends JFrame {
             JOptionPane.YES_NO_OPTION);
         
         if (choice == JOptionPane.YES_OPTION) {
+            filePanel.close();
             dispose();
             // Restart with login screen
             SwingUtilities.invokeLater(() -> {
@@ -157,16 +168,35 @@ public class MainFrame extends JFrame {
     private void controlListener() {
         try {
             while (true) {
-                String msg = controlIn.readUTF();
-                if (msg.startsWith("CLIENTS|")) {
-                    String listPart = msg.substring("CLIENTS|".length());
-                    String[] names = listPart.split(",");
-                    chatPanel.updateClientList(names);
-                    filePanel.setClientList(names);
-                } else if (msg.startsWith("PM|")) {
-                    String[] p = msg.split("\\|", 3);
-                    if (p.length >= 3) {
-                        chatPanel.onPrivateMessage(p[1], p[2]);
+                FrameCodec.Frame frame = FrameCodec.read(controlIn);
+                switch (frame.type()) {
+                    case FrameCodec.ROSTER -> {
+                        // version, count, names
+                        rosterVersion = frame.nextNumber();
+                        rosterSyncPending = false;
+                        String[] names = new String[(int) frame.nextNumber()];
+                        for (int i = 0; i < names.length; i++) names[i] = frame.nextString();
+                        chatPanel.updateClientList(names);
+                        filePanel.setClientList(names);
+                    }
+                    case FrameCodec.JOIN, FrameCodec.LEAVE -> {
+                        if (rosterSyncPending) continue;
+                        long version = frame.nextNumber();
+                        if (version != rosterVersion + 1) {
+                            // missed a delta: ask for a fresh snapshot
+                            requestRosterSync();
+                            continue;
+                        }
+                        rosterVersion = version;
+                        if (frame.type() == FrameCodec.JOIN) chatPanel.onClientJoined(frame.nextString());
+                        else chatPanel.onClientLeft(frame.nextString());
+                    }
+                    case FrameCodec.PM -> {
+                        String from = frame.nextString();
+                        chatPanel.onPrivateMessage(from, frame.nextString());
+                    }
+                    default -> {
+                        // HELLO ack; unknown types from a newer server are skipped
                     }
                 }
             }
@@ -179,6 +209,14 @@ public class MainFrame extends JFrame {
         }
     }
 
+    private void requestRosterSync() throws java.io.IOException {
+        rosterSyncPending = true;
+        synchronized (controlOut) {
+            FrameCodec.write(controlOut, FrameCodec.encode(FrameCodec.SYNC));
+            controlOut.flush();
+        }
+    }
+
     // entry point
     public static void main(String[] args) {
         // Set FlatLaf Look and Feel
@@ -5,9 +5,12 @@ import java.awt.*;
 import java.io.DataOutputStream;
 import java.util.Arrays;
 
+import smtp.server.FrameCodec;
+
 /**
  * ChatPanel uses the control DataOutputStream (passed from MainFrame) to send PM commands.
- * It receives messages via the MainFrame control listener and calls onPrivateMessage / updateClientList.
+ * It receives messages via the MainFrame control listener and calls onPrivateMessage / updateClientList
+ * (full list) / onClientJoined / onClientLeft (presence deltas).
  */
 public class ChatPanel extends JPanel {
 
@@ -41,13 +44,44 @@ public class ChatPanel extends JPanel {
         input.addActionListener(e -> sendToSelected());
     }
 
+    /** Full snapshot (CLIENTS| or ROSTER|). */
     public void updateClientList(String[] clients) {
         SwingUtilities.invokeLater(() -> {
             model.clear();
-            Arrays.stream(clients).filter(s -> s != null && !s.isEmpty() && !s.equals(clientName)).forEach(model::addElement);
+            Arrays.stream(clients).filter(s -> s != null && !s.isEmpty() && !s.equals(clientName))
+                    .sorted().forEach(model::addElement);
+        });
+    }
+
+    /** JOIN delta: insert in sorted position, keeping the current selection. */
+    public void onClientJoined(String name) {
+        if (name.isEmpty() || name.equals(clientName)) return;
+        SwingUtilities.invokeLater(() -> {
+            int i = sortedIndex(name);
+            if (i < 0) model.add(-i - 1, name);
+        });
+    }
+
+    /** LEAVE delta. */
+    public void onClientLeft(String name) {
+        SwingUtilities.invokeLater(() -> {
+            int i = sortedIndex(name);
+            if (i >= 0) model.remove(i);
         });
     }
 
+    private int sortedIndex(String key) {
+        int lo = 0, hi = model.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = model.get(mid).compareTo(key);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
     public void onPrivateMessage(String from, String message) {
         SwingUtilities.invokeLater(() -> chatArea.append(from + " -> you: " + message + "\n"));
     }
@@ -58,8 +92,11 @@ public class ChatPanel extends JPanel {
         String msg = input.getText().trim();
         if (msg.isEmpty()) return;
         try {
-            controlOut.writeUTF("PM|" + target + "|" + msg);
-            controlOut.flush();
+            // MainFrame's control listener also writes (SYNC) on this stream
+            synchronized (controlOut) {
+                FrameCodec.write(controlOut, FrameCodec.encode(FrameCodec.PM, target, msg));
+                controlOut.flush();
+            }
             chatArea.append("You -> " + target + ": " + msg + "\n");
             input.setText("");
         } catch (Exception e) {
@@ -2,15 +2,41 @@ package smtp.client;
 
 import javax.swing.*;
 
+import smtp.server.ChannelIO;
+import smtp.server.Compression;
+import smtp.server.DeltaSync;
 import smtp.server.FileServer;
+import smtp.server.TransferCodec;
 
 import java.awt.*;
 import java.io.*;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
 
 /**
  * FilePanel for client. Uses file transfer port to upload/list/download.
- * Sends clientName as first UTF when opening file socket.
+ * Sends clientName as first UTF when opening file socket; connections are persistent sessions
+ * kept in a FileSessionPool, and several selected files are downloaded pipelined over one session.
+ * The file list is fetched a page at a time (LIST_PAGE) as the user scrolls, optionally filtered
+ * by a name prefix.
+ * Upload/download move file bytes with FileChannel transfers (see ChannelIO) and resume
+ * where they stopped if the connection drops (UPLOAD_RESUME / DOWNLOAD_RANGE). Large files are
+ * split over several connections (ParallelTransfer). Uploads and pipelined downloads are compressed
+ * when both sides agree and the data does not look compressed already (see Compression).
+ * A new version of a file the server already has under the same name is sent as a delta
+ * (UPLOAD_DELTA): only the parts that changed cross the network.
+ * Downloads are checked against the CRC32C the server stored with the file, computed as the bytes
+ * arrive; -Dsmtp.transfer.verifySha256=true checks the SHA-256 as well.
  */
 public class FilePanel extends JPanel {
 
@@ -19,9 +45,32 @@ public class FilePanel extends JPanel {
     private final JList<String> list = new JList<>(model);
 
     private final String serverHost = "localhost";
+    // connections tried per upload/download; each retry resumes where the last one stopped
+    private static final int ATTEMPTS = 3;
+    // SHA-256 costs several times the CRC32C per byte, so it is only checked on request
+    static final boolean VERIFY_SHA256 = Boolean.getBoolean("smtp.transfer.verifySha256");
+    // open file-port sessions, reused across actions
+    private final FileSessionPool sessions;
+    // large files go over several connections at once
+    private final ParallelTransfer parallel;
+
+    // compression or delta used per file by the current upload/download (EDT only), shown in its dialog
+    private final Map<String, String> transferReports = new HashMap<>();
+    // smaller files are sent whole: the signatures and the scan would save next to nothing
+    private static final long DELTA_MIN_SIZE = 256 * 1024;
+
+    // the list is loaded a page at a time (LIST_PAGE) as the user scrolls; all fields below on the EDT
+    private static final int PAGE_SIZE = 200;
+    private final JTextField filter = new JTextField(12);
+    private String cursor = "";        // last name loaded
+    private boolean morePages;
+    private boolean loading;
+    private int listGeneration;        // bumped by doRefresh: pages still arriving for the old list are dropped
 
     public FilePanel(String clientName) {
         this.clientName = clientName;
+        this.sessions = new FileSessionPool(serverHost, FileServer.FILE_PORT, clientName);
+        this.parallel = new ParallelTransfer(sessions);
         setLayout(new BorderLayout());
 
         JPanel top = new JPanel();
@@ -29,17 +78,26 @@ public class FilePanel extends JPanel {
         JButton download = new JButton("Download");
         JButton refresh = new JButton("Refresh");
         top.add(upload); top.add(download); top.add(refresh);
+        top.add(new JLabel("Filter:")); top.add(filter);
 
+        JScrollPane scroll = new JScrollPane(list);
         add(top, BorderLayout.NORTH);
-        add(new JScrollPane(list), BorderLayout.CENTER);
+        add(scroll, BorderLayout.CENTER);
 
         upload.addActionListener(e -> doUpload());
         download.addActionListener(e -> doDownload());
         refresh.addActionListener(e -> doRefresh());
+        filter.addActionListener(e -> doRefresh()); // Enter: names starting with the filter
+        scroll.getVerticalScrollBar().addAdjustmentListener(e -> loadMoreIfNearEnd());
 
         doRefresh();
     }
 
+    /** Close the pooled file sessions; call when the panel is thrown away (logout). */
+    public void close() {
+        sessions.close();
+    }
+
     public void setClientList(String[] clients) {
         // optional: if you want to show clients in file panel
     }
@@ -48,32 +106,33 @@ public class FilePanel extends JPanel {
         JFileChooser fc = new JFileChooser();
         if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
         File f = fc.getSelectedFile();
+        transferReports.clear();
 
-        try (Socket s = new Socket(serverHost, FileServer.FILE_PORT);
-             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
-             DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
-
-            // identify
-            dos.writeUTF(clientName);
-            // command
-            dos.writeUTF("UPLOAD");
-            // filename & size
-            dos.writeUTF(f.getName());
-            dos.writeLong(f.length());
-            dos.flush();
-
-            // send bytes
-            try (FileInputStream fis = new FileInputStream(f)) {
-                byte[] buf = new byte[16 * 1024];
-                int r;
-                while ((r = fis.read(buf)) != -1) {
-                    dos.write(buf, 0, r);
+        try {
+            // one read for both: the CRC32C identifies a resumable upload, the SHA-256 its content
+            CRC32C crc = new CRC32C();
+            MessageDigest sha = ChannelIO.sha256();
+            try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                ChannelIO.update(crc, sha, file, file.size());
+            }
+            // the server may already store this content (any name, any client): then nothing is sent
+            String resp = uploadHash(f, HexFormat.of().formatHex(sha.digest()));
+            // an earlier version under the same name: send only what changed
+            if ("MISSING".equals(resp) && f.length() >= DELTA_MIN_SIZE) {
+                try {
+                    String delta = uploadDelta(f, crc.getValue());
+                    if ("OK".equals(delta)) resp = delta;
+                } catch (IOException ex) {
+                    // the session was discarded: upload it whole, like after a mismatch
+                    ex.printStackTrace();
                 }
             }
-            dos.flush();
-
-            String resp = dis.readUTF();
-            JOptionPane.showMessageDialog(this, "Upload response: " + resp);
+            if ("MISSING".equals(resp)) {
+                resp = parallel.worthSplitting(f.length()) ? parallel.upload(f, crc.getValue())
+                        : uploadResumable(f, crc.getValue());
+            }
+            String report = transferReports.get(f.getName());
+            JOptionPane.showMessageDialog(this, "Upload response: " + resp + (report == null ? "" : "\n" + report));
             doRefresh();
 
         } catch (Exception ex) {
@@ -82,66 +141,348 @@ public class FilePanel extends JPanel {
         }
     }
 
-    private void doRefresh() {
-        try (Socket s = new Socket(serverHost, FileServer.FILE_PORT);
-             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
-             DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
-
-            dos.writeUTF(clientName);
-            dos.writeUTF("LIST");
-            dos.flush();
-
-            int count = dis.readInt();
-            model.clear();
-            for (int i = 0; i < count; i++) {
-                String name = dis.readUTF();
-                long size = dis.readLong();
-                model.addElement(name + " (" + size + " bytes)");
+    /** UPLOAD_HASH: "OK" if the server linked the name to content it has, "MISSING" to upload it. */
+    private String uploadHash(File f, String sha256) throws IOException {
+        FileSessionPool.Session s = sessions.borrow();
+        try {
+            int id = s.request("UPLOAD_HASH");
+            s.out.writeUTF(f.getName());
+            s.out.writeLong(f.length());
+            s.out.writeUTF(sha256);
+            s.out.flush();
+            s.answer(id);
+            String status = s.in.readUTF();
+            sessions.release(s);
+            return status;
+        } catch (IOException ex) {
+            sessions.discard(s);
+            throw ex;
+        }
+    }
+
+    /**
+     * UPLOAD_DELTA: "OK" once the server rebuilt f from its copy of the same name and the
+     * changed bytes; anything else (no copy, a mismatch) means upload it whole.
+     */
+    private String uploadDelta(File f, long crc) throws IOException {
+        FileSessionPool.Session s = sessions.borrow();
+        try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long start = System.nanoTime();
+            int id = s.request("UPLOAD_DELTA");
+            s.out.writeUTF(f.getName());
+            s.out.writeLong(file.size());
+            s.out.writeLong(crc);
+            s.out.flush();
+            s.answer(id);
+            String status = s.in.readUTF();
+            if ("OK".equals(status)) {
+                DeltaSync.Signatures sig = DeltaSync.readSignatures(s.in);
+                long sent = DeltaSync.sendDelta(file, sig, s.out);
+                status = s.in.readUTF();
+                if ("OK".equals(status)) {
+                    transferReports.put(f.getName(), DeltaSync.report(file.size(), sent, System.nanoTime() - start));
+                }
             }
+            sessions.release(s);
+            return status;
+        } catch (IOException ex) {
+            sessions.discard(s);
+            throw ex;
+        }
+    }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    private String uploadResumable(File f, long crc) throws IOException {
+        // the checksum identifies the upload on the server, so a retry finds its partial data
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return uploadOnce(f, crc);
+            } catch (IOException ex) {
+                if (attempt == ATTEMPTS) throw ex;
+            }
         }
     }
 
-    private void doDownload() {
-        String selected = list.getSelectedValue();
-        if (selected == null) return;
-        String filename = selected.split(" \\(")[0];
-
-        try (Socket s = new Socket(serverHost, FileServer.FILE_PORT);
-             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
-             DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
-
-            dos.writeUTF(clientName);
-            dos.writeUTF("DOWNLOAD");
-            dos.writeUTF(filename);
-            dos.flush();
-
-            String status = dis.readUTF();
-            if ("NOT_FOUND".equals(status)) {
-                JOptionPane.showMessageDialog(this, "File not found on server");
+    private String uploadOnce(File f, long crc) throws IOException {
+        FileSessionPool.Session s = sessions.borrow();
+        try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = file.size();
+
+            // compress unless the file looks compressed already (judged from a sample)
+            TransferCodec wanted = Compression.CLIENT_CODECS.isEmpty() ? null
+                    : Compression.get(Compression.CLIENT_CODECS.get(0));
+            if (wanted != null && !Compression.looksCompressible(file, 0, size)) wanted = null;
+
+            // command, filename, size, checksum & codec
+            int id = s.request("UPLOAD_RESUME_Z");
+            s.out.writeUTF(f.getName());
+            s.out.writeLong(size);
+            s.out.writeLong(crc);
+            s.out.writeUTF(Compression.nameOf(wanted));
+            s.out.flush();
+
+            s.answer(id);
+            String status = s.in.readUTF();
+            if ("OK".equals(status)) {
+                long offset = s.in.readLong(); // bytes the server already has
+                TransferCodec codec = Compression.get(s.in.readUTF()); // null: send raw
+                // send the rest
+                if (codec == null) {
+                    ChannelIO.sendFile(file, offset, size - offset, s.channel);
+                } else {
+                    long start = System.nanoTime();
+                    long wire = Compression.send(file, offset, size - offset, codec, s.out);
+                    transferReports.put(f.getName(),
+                            Compression.report(codec, size - offset, wire, System.nanoTime() - start));
+                }
+                status = s.in.readUTF();
+            }
+            sessions.release(s);
+            return status;
+        } catch (IOException ex) {
+            sessions.discard(s);
+            throw ex;
+        }
+    }
+
+    private void doRefresh() {
+        listGeneration++;
+        model.clear();
+        cursor = "";
+        morePages = true;
+        loading = false;
+        loadNextPage();
+    }
+
+    private void loadMoreIfNearEnd() {
+        // also true while the loaded names do not fill the view yet
+        if (list.getLastVisibleIndex() >= model.size() - PAGE_SIZE / 4) loadNextPage();
+    }
+
+    /** Fetch the page after the cursor in the background; its frames are shown as they arrive. */
+    private void loadNextPage() {
+        if (loading || !morePages) return;
+        loading = true;
+        int generation = listGeneration;
+        String prefix = filter.getText().trim();
+        String after = cursor;
+        Thread t = new Thread(() -> fetchPage(generation, prefix, after), "file-list");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void fetchPage(int generation, String prefix, String after) {
+        // a pooled session may have been closed by the server meanwhile: retry once on a fresh one,
+        // from the last name received
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            FileSessionPool.Session s = null;
+            try {
+                s = sessions.borrow();
+                int id = s.request("LIST_PAGE");
+                s.out.writeUTF(prefix);
+                s.out.writeUTF(after);
+                s.out.writeInt(PAGE_SIZE);
+                s.out.flush();
+
+                s.answer(id);
+                String status = s.in.readUTF();
+                if (!"OK".equals(status)) throw new IOException("LIST_PAGE: " + status);
+                int n;
+                while ((n = s.in.readInt()) > 0) {
+                    List<String> rows = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        after = s.in.readUTF();
+                        long size = s.in.readLong();
+                        s.in.readLong(); // time added
+                        rows.add(after + " (" + size + " bytes)");
+                    }
+                    String last = after;
+                    SwingUtilities.invokeLater(() -> {
+                        if (generation != listGeneration) return;
+                        for (String r : rows) model.addElement(r);
+                        cursor = last;
+                    });
+                }
+                boolean more = s.in.readBoolean();
+                sessions.release(s);
+                SwingUtilities.invokeLater(() -> {
+                    if (generation != listGeneration) return;
+                    morePages = more;
+                    loading = false;
+                    loadMoreIfNearEnd();
+                });
                 return;
+
+            } catch (Exception ex) {
+                if (s != null) sessions.discard(s);
+                if (attempt == 2) {
+                    ex.printStackTrace();
+                    // scrolling again retries
+                    SwingUtilities.invokeLater(() -> {
+                        if (generation == listGeneration) loading = false;
+                    });
+                }
             }
+        }
+    }
 
-            long size = dis.readLong();
-            File out = new File("download_" + filename);
-            try (FileOutputStream fos = new FileOutputStream(out)) {
-                byte[] buf = new byte[16 * 1024];
-                long remaining = size;
-                while (remaining > 0) {
-                    int toRead = (int) Math.min(buf.length, remaining);
-                    int r = dis.read(buf, 0, toRead);
-                    if (r == -1) break;
-                    fos.write(buf, 0, r);
-                    remaining -= r;
+    private void doDownload() {
+        List<String> selected = list.getSelectedValuesList();
+        if (selected.isEmpty()) return;
+
+        try {
+            // large files one at a time over several connections, the rest pipelined on one session
+            Map<String, String> results = new LinkedHashMap<>();
+            List<String> small = new ArrayList<>();
+            for (String entry : selected) {
+                String filename = entry.split(" \\(")[0];
+                if (parallel.worthSplitting(listedSize(entry))) {
+                    results.put(filename, parallel.download(filename, downloadFile(filename)));
+                } else {
+                    small.add(filename);
                 }
             }
-            JOptionPane.showMessageDialog(this, "Downloaded to " + out.getAbsolutePath());
+            transferReports.clear();
+            results.putAll(downloadPipelined(small));
+
+            if (results.size() == 1) {
+                String filename = results.keySet().iterator().next();
+                String status = results.get(filename);
+                if ("NOT_FOUND".equals(status)) {
+                    JOptionPane.showMessageDialog(this, "File not found on server");
+                } else if (!"OK".equals(status)) {
+                    JOptionPane.showMessageDialog(this, "Download failed: " + status);
+                } else {
+                    String report = transferReports.get(filename);
+                    JOptionPane.showMessageDialog(this, "Downloaded to " + downloadFile(filename).getAbsolutePath()
+                            + (report == null ? "" : "\n" + report));
+                }
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> r : results.entrySet()) {
+                sb.append(r.getKey()).append(": ")
+                        .append("OK".equals(r.getValue()) ? "downloaded" : r.getValue());
+                String report = transferReports.get(r.getKey());
+                if (report != null) sb.append(" (").append(report).append(')');
+                sb.append('\n');
+            }
+            JOptionPane.showMessageDialog(this, sb.toString());
 
         } catch (Exception ex) {
             ex.printStackTrace();
             JOptionPane.showMessageDialog(this, "Download failed: " + ex.getMessage());
         }
     }
+
+    /** Download the files over one session; returns each file's status in request order. */
+    private Map<String, String> downloadPipelined(List<String> filenames) throws IOException {
+        Map<String, String> status = new LinkedHashMap<>();
+        for (String f : filenames) status.put(f, null);
+        for (int attempt = 1; status.containsValue(null); attempt++) {
+            try {
+                downloadBatch(status, attempt == ATTEMPTS);
+            } catch (IOException ex) {
+                // each retry resumes every unfinished file from its .part
+                if (attempt == ATTEMPTS) throw ex;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Send a DOWNLOAD_VERIFIED for every file without a status yet, then read the answers in order,
+     * continuing the .part files earlier attempts left behind. A file whose checksum does not match
+     * is discarded and fetched again from the start.
+     */
+    private void downloadBatch(Map<String, String> status, boolean lastAttempt) throws IOException {
+        List<String> pending = new ArrayList<>();
+        for (Map.Entry<String, String> e : status.entrySet()) {
+            if (e.getValue() == null) pending.add(e.getKey());
+        }
+        int[] ids = new int[pending.size()];
+        long[] offsets = new long[pending.size()];
+
+        FileSessionPool.Session s = sessions.borrow();
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                offsets[i] = partialFile(downloadFile(pending.get(i))).length();
+                ids[i] = s.request("DOWNLOAD_VERIFIED");
+                s.out.writeUTF(pending.get(i));
+                s.out.writeLong(offsets[i]);
+                s.out.writeLong(-1); // to the end
+                s.out.writeUTF(String.join(",", Compression.CLIENT_CODECS));
+            }
+            s.out.flush();
+
+            for (int i = 0; i < pending.size(); i++) {
+                String filename = pending.get(i);
+                File out = downloadFile(filename);
+                File part = partialFile(out);
+                s.answer(ids[i]);
+                String st = s.in.readUTF();
+                if ("ERR_RANGE".equals(st) && !lastAttempt) {
+                    // the file shrank on the server since the last attempt: start over
+                    Files.deleteIfExists(part.toPath());
+                    continue;
+                }
+                if (!"OK".equals(st)) {
+                    status.put(filename, st);
+                    continue;
+                }
+                s.in.readLong(); // total size
+                long length = s.in.readLong();
+                TransferCodec codec = Compression.get(s.in.readUTF()); // null: raw bytes follow
+                long expectedCrc = s.in.readLong();
+                String expectedSha = s.in.readUTF();
+                boolean match;
+                try (FileChannel fc = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+                    CRC32C crc = new CRC32C();
+                    MessageDigest sha = VERIFY_SHA256 ? ChannelIO.sha256() : null;
+                    ChannelIO.update(crc, sha, fc, offsets[i]); // bytes kept from an earlier attempt
+                    if (codec == null) {
+                        s.body.transferTo(fc, offsets[i], length, crc, sha);
+                    } else {
+                        long start = System.nanoTime();
+                        long wire = Compression.receive(s.in, codec, fc, offsets[i], length, crc, sha);
+                        transferReports.put(filename, Compression.report(codec, length, wire, System.nanoTime() - start));
+                    }
+                    match = crc.getValue() == expectedCrc
+                            && (sha == null || HexFormat.of().formatHex(sha.digest()).equals(expectedSha));
+                }
+                if (!match) {
+                    // corrupted, or the .part was kept from an older version of the file
+                    Files.deleteIfExists(part.toPath());
+                    if (lastAttempt) status.put(filename, "ERR_CHECKSUM");
+                    continue;
+                }
+                Files.move(part.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                status.put(filename, "OK");
+            }
+            sessions.release(s);
+        } catch (IOException ex) {
+            sessions.discard(s);
+            throw ex;
+        }
+    }
+
+    // list entries look like "name (123 bytes)"
+    private static long listedSize(String entry) {
+        int open = entry.lastIndexOf(" (");
+        int end = entry.lastIndexOf(" bytes)");
+        if (open < 0 || end < open) return 0;
+        try {
+            return Long.parseLong(entry.substring(open + 2, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static File downloadFile(String filename) {
+        return new File("download_" + filename);
+    }
+
+    private static File partialFile(File out) {
+        return new File(out.getPath() + ".part");
+    }
 }
@@ -0,0 +1,157 @@
+package smtp.client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import smtp.server.ChannelIO;
+
+/**
+ * Persistent file-port sessions (SESSION command, see FileTransferWorker), so a refresh followed
+ * by several downloads does not pay a TCP handshake and a server thread per action.
+ * A borrowed session belongs to one caller until released; the caller may pipeline several
+ * requests on it. Sessions idle for more than 30 s are closed, by a timer or when next borrowed,
+ * well before the server drops them (see FileTransferWorker). Close the pool when done with it.
+ *
+ * Tunable with -Dsmtp.transfer.poolSize (idle sessions kept, default 4).
+ */
+final class FileSessionPool implements AutoCloseable {
+
+    static final int POOL_SIZE = Integer.getInteger("smtp.transfer.poolSize", 4);
+    private static final long IDLE_MILLIS = 30_000;
+
+    // one daemon thread evicts the idle sessions of every pool
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "file-session-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String host;
+    private final int port;
+    private final String clientName;
+    // most recently used first; guarded by this
+    private final ArrayDeque<Session> idle = new ArrayDeque<>();
+    private boolean closed;
+    private final ScheduledFuture<?> eviction;
+
+    FileSessionPool(String host, int port, String clientName) {
+        this.host = host;
+        this.port = port;
+        this.clientName = clientName;
+        this.eviction = EVICTOR.scheduleWithFixedDelay(this::evictIdle, IDLE_MILLIS / 2, IDLE_MILLIS / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** An idle session, or a new one if none is left. */
+    Session borrow() throws IOException {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Session s;
+            while ((s = idle.pollFirst()) != null) {
+                if (now - s.lastUsed < IDLE_MILLIS && s.channel.isOpen()) return s;
+                s.close();
+            }
+        }
+        return open();
+    }
+
+    /** Hand back a session whose requests were all answered. */
+    void release(Session s) {
+        synchronized (this) {
+            if (!closed && idle.size() < POOL_SIZE) {
+                s.lastUsed = System.currentTimeMillis();
+                idle.addFirst(s);
+                return;
+            }
+        }
+        s.close();
+    }
+
+    /** Drop a session that failed mid-request; its stream position is unknown. */
+    void discard(Session s) {
+        s.close();
+    }
+
+    /** Close idle sessions past IDLE_MILLIS, so they do not hold a connection on the server. */
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Session> it = idle.iterator(); it.hasNext(); ) {
+            Session s = it.next();
+            if (now - s.lastUsed >= IDLE_MILLIS || !s.channel.isOpen()) {
+                it.remove();
+                s.close();
+            }
+        }
+    }
+
+    /** Close the idle sessions and stop pooling: sessions released later are closed. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        eviction.cancel(false);
+        for (Session s : idle) s.close();
+        idle.clear();
+    }
+
+    private Session open() throws IOException {
+        Session s = new Session(SocketChannel.open(new InetSocketAddress(host, port)));
+        try {
+            s.out.writeUTF(clientName);
+            s.out.writeUTF("SESSION");
+            s.out.flush();
+            String status = s.in.readUTF();
+            if (!"OK".equals(status)) throw new ProtocolException("server refused session: " + status);
+            return s;
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    /** One persistent connection and its header streams. */
+    static final class Session {
+        final SocketChannel channel;
+        final DataOutputStream out;
+        final ChannelIO.HeaderInput body;
+        final DataInputStream in;
+        private int nextId;
+        private long lastUsed;
+
+        private Session(SocketChannel channel) {
+            this.channel = channel;
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            this.body = new ChannelIO.HeaderInput(channel);
+            this.in = new DataInputStream(body);
+        }
+
+        /** Start a request; the caller writes its arguments and flushes. Returns the request id. */
+        int request(String command) throws IOException {
+            int id = ++nextId;
+            out.writeInt(id);
+            out.writeUTF(command);
+            return id;
+        }
+
+        /** Read the header of the next answer, which must be the one for request id. */
+        void answer(int id) throws IOException {
+            int got = in.readInt();
+            if (got != id) throw new ProtocolException("got answer to request " + got + ", expected " + id);
+        }
+
+        private void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package smtp.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+import smtp.server.ChannelIO;
+
+/**
+ * Moves one large file over several file-port connections at once (UPLOAD_CHUNKS /
+ * DOWNLOAD_CHUNKS, see FileTransferWorker). The file is cut into fixed-size chunks; each
+ * connection keeps taking the next unclaimed chunk until none are left, so fast streams
+ * simply do more of them. A chunk whose connection drops is retried on a new connection.
+ * Connections are sessions borrowed from a FileSessionPool, so back-to-back transfers reuse them.
+ * Chunks arrive out of order, so a download is verified once complete, against the checksums
+ * the server stored with the file (CHECKSUM).
+ *
+ * Tunable with -Dsmtp.transfer.streams (default 4) and -Dsmtp.transfer.chunkSize (bytes, default 8 MiB).
+ */
+final class ParallelTransfer {
+
+    static final int STREAMS = Integer.getInteger("smtp.transfer.streams", 4);
+    static final int CHUNK_SIZE = Integer.getInteger("smtp.transfer.chunkSize", 8 << 20);
+    private static final int CHUNK_ATTEMPTS = 3;
+
+    private final FileSessionPool sessions;
+    private final int streams;
+    private final long chunkSize;
+
+    ParallelTransfer(FileSessionPool sessions) {
+        this(sessions, STREAMS, CHUNK_SIZE);
+    }
+
+    ParallelTransfer(FileSessionPool sessions, int streams, long chunkSize) {
+        this.sessions = sessions;
+        this.streams = Math.max(1, streams);
+        this.chunkSize = Math.max(64 * 1024, chunkSize);
+    }
+
+    /** Files under two chunks are not worth the extra connections. */
+    boolean worthSplitting(long size) {
+        return streams > 1 && size >= 2 * chunkSize;
+    }
+
+    /**
+     * Upload f, whose CRC32C is crc, in chunks, then ask the server to verify and commit it.
+     * Returns the server's status.
+     */
+    String upload(File f, long crc) throws IOException {
+        long size = f.length();
+        String name = f.getName();
+        AtomicLong next = new AtomicLong();
+        runStreams(() -> {
+            try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                long offset = next.getAndAdd(chunkSize);
+                for (int attempt = 1; offset < size; attempt++) {
+                    FileSessionPool.Session s = sessions.borrow();
+                    try {
+                        int id = s.request("UPLOAD_CHUNKS");
+                        s.out.writeUTF(name);
+                        s.out.writeLong(size);
+                        s.out.writeLong(crc);
+                        s.out.flush();
+                        s.answer(id);
+                        expectOk(s.in.readUTF());
+                        while (offset < size) {
+                            long length = Math.min(chunkSize, size - offset);
+                            s.out.writeLong(offset);
+                            s.out.writeLong(length);
+                            s.out.flush();
+                            ChannelIO.sendFile(file, offset, length, s.channel);
+                            expectOk(s.in.readUTF());
+                            offset = next.getAndAdd(chunkSize);
+                            attempt = 1;
+                        }
+                        s.out.writeLong(-1);
+                        s.out.flush();
+                        expectOk(s.in.readUTF()); // the server let go of the file
+                        sessions.release(s);
+                    } catch (IOException e) {
+                        sessions.discard(s);
+                        if (attempt == CHUNK_ATTEMPTS) throw e;
+                    }
+                }
+            }
+            return null;
+        });
+
+        FileSessionPool.Session s = sessions.borrow();
+        try {
+            int id = s.request("UPLOAD_COMMIT");
+            s.out.writeUTF(name);
+            s.out.writeLong(size);
+            s.out.writeLong(crc);
+            s.out.flush();
+            s.answer(id);
+            String status = s.in.readUTF();
+            sessions.release(s);
+            return status;
+        } catch (IOException e) {
+            sessions.discard(s);
+            throw e;
+        }
+    }
+
+    /** Download the server file name into out. Returns "OK", "ERR_CHECKSUM" or the server's status. */
+    String download(String name, File out) throws IOException {
+        File part = new File(out.getPath() + ".part");
+        AtomicLong next = new AtomicLong();
+        AtomicLong knownSize = new AtomicLong(-1);
+        String[] status = {"OK"};
+        // created by the first stream the server answers OK, so NOT_FOUND leaves no .part behind
+        AtomicReference<FileChannel> channel = new AtomicReference<>();
+        boolean finished = false;
+        try {
+            runStreams(() -> {
+                long offset = -1;
+                for (int attempt = 1; ; attempt++) {
+                    FileSessionPool.Session s = sessions.borrow();
+                    try {
+                        int id = s.request("DOWNLOAD_CHUNKS");
+                        s.out.writeUTF(name);
+                        s.out.flush();
+                        s.answer(id);
+                        String st = s.in.readUTF();
+                        if (!"OK".equals(st)) {
+                            sessions.release(s);
+                            status[0] = st;
+                            return null;
+                        }
+                        long size = s.in.readLong();
+                        if (!knownSize.compareAndSet(-1, size) && knownSize.get() != size) {
+                            throw new IOException("file changed on the server during download");
+                        }
+                        FileChannel fc = openPart(channel, part);
+                        if (offset < 0) offset = next.getAndAdd(chunkSize);
+                        while (offset < size) {
+                            long length = Math.min(chunkSize, size - offset);
+                            s.out.writeLong(offset);
+                            s.out.writeLong(length);
+                            s.out.flush();
+                            expectOk(s.in.readUTF());
+                            s.body.transferTo(fc, offset, length); // positional: streams never overlap
+                            offset = next.getAndAdd(chunkSize);
+                            attempt = 1;
+                        }
+                        s.out.writeLong(-1);
+                        s.out.flush();
+                        sessions.release(s);
+                        return null;
+                    } catch (IOException e) {
+                        sessions.discard(s);
+                        if (attempt == CHUNK_ATTEMPTS) throw e;
+                    }
+                }
+            });
+            finished = true;
+        } finally {
+            FileChannel fc = channel.get();
+            if (fc != null) fc.close();
+            // a parallel download does not resume, so a failed one leaves nothing behind
+            if (!finished) Files.deleteIfExists(part.toPath());
+        }
+        if (channel.get() == null) return status[0]; // refused before any byte: no .part
+        if ("OK".equals(status[0])) status[0] = verify(name, part, knownSize.get());
+        if (!"OK".equals(status[0])) {
+            Files.deleteIfExists(part.toPath());
+            return status[0];
+        }
+        Files.move(part.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return "OK";
+    }
+
+    private static FileChannel openPart(AtomicReference<FileChannel> channel, File part) throws IOException {
+        synchronized (channel) {
+            FileChannel fc = channel.get();
+            if (fc == null) {
+                fc = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channel.set(fc);
+            }
+            return fc;
+        }
+    }
+
+    /** Check the downloaded part against the checksums the server keeps for name (one read of the file). */
+    private String verify(String name, File part, long size) throws IOException {
+        FileSessionPool.Session s = sessions.borrow();
+        long expectedCrc;
+        String expectedSha;
+        try {
+            int id = s.request("CHECKSUM");
+            s.out.writeUTF(name);
+            s.out.flush();
+            s.answer(id);
+            String st = s.in.readUTF();
+            if (!"OK".equals(st)) {
+                sessions.release(s);
+                return st;
+            }
+            long storedSize = s.in.readLong();
+            expectedCrc = s.in.readLong();
+            expectedSha = s.in.readUTF();
+            sessions.release(s);
+            if (storedSize != size) return "ERR_CHECKSUM"; // replaced on the server meanwhile
+        } catch (IOException e) {
+            sessions.discard(s);
+            throw e;
+        }
+        CRC32C crc = new CRC32C();
+        MessageDigest sha = FilePanel.VERIFY_SHA256 ? ChannelIO.sha256() : null;
+        try (FileChannel fc = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            ChannelIO.update(crc, sha, fc, size);
+        }
+        boolean match = crc.getValue() == expectedCrc
+                && (sha == null || HexFormat.of().formatHex(sha.digest()).equals(expectedSha));
+        return match ? "OK" : "ERR_CHECKSUM";
+    }
+
+    /** Run the task on `streams` threads at once; rethrows the first failure. */
+    private void runStreams(Callable<Void> task) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        try {
+            List<Future<Void>> running = new ArrayList<>();
+            for (int i = 0; i < streams; i++) running.add(pool.submit(task));
+            for (Future<Void> f : running) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) throw io;
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void expectOk(String status) throws IOException {
+        if (!"OK".equals(status)) throw new IOException("server replied " + status);
+    }
+}
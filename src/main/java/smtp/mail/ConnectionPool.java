@@ -0,0 +1,149 @@
+package smtp.mail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite connections for MailDatabase: one writer, used by one thread at a time (SQLite
+ * allows one writer anyway, and waiting on a Java lock beats retrying on SQLITE_BUSY), and up
+ * to maxReaders reader connections opened on demand. In WAL mode readers do not block the
+ * writer or each other. Each connection keeps its PreparedStatements by SQL text, so a
+ * statement is parsed once per connection rather than once per call.
+ */
+final class ConnectionPool {
+
+    /** Database work on one connection; it must not keep the connection or its statements. */
+    interface Work<T> {
+        T run(PooledConnection db) throws SQLException;
+    }
+
+    /** Called on every new connection, before it is used. */
+    interface Setup {
+        void configure(Connection connection) throws SQLException;
+    }
+
+    /** A connection and its statement cache. Only the thread holding it may use it. */
+    static final class PooledConnection {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /** The cached statement for sql, its parameters cleared. */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt == null) {
+                pstmt = connection.prepareStatement(sql);
+                statements.put(sql, pstmt);
+            } else {
+                pstmt.clearParameters();
+            }
+            return pstmt;
+        }
+
+        void close() {
+            try {
+                for (PreparedStatement pstmt : statements.values()) {
+                    pstmt.close();
+                }
+                statements.clear();
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final String url;
+    private final Setup setup;
+    private final int maxReaders;
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<PooledConnection> idleReaders;
+    private final List<PooledConnection> readers = new ArrayList<>(); // all opened, guarded by itself
+
+    ConnectionPool(String url, int maxReaders, Setup setup) throws SQLException {
+        this.url = url;
+        this.setup = setup;
+        this.maxReaders = Math.max(1, maxReaders);
+        this.idleReaders = new ArrayBlockingQueue<>(this.maxReaders);
+        this.writer = open();
+    }
+
+    /** Run work on a reader connection, waiting for one if all are busy. */
+    <T> T read(Work<T> work) throws SQLException {
+        PooledConnection db = takeReader();
+        try {
+            return work.run(db);
+        } finally {
+            idleReaders.add(db);
+        }
+    }
+
+    /** Run work on the writer connection, alone. */
+    <T> T write(Work<T> work) throws SQLException {
+        writeLock.lock();
+        try {
+            return work.run(writer);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private PooledConnection takeReader() throws SQLException {
+        PooledConnection db = idleReaders.poll();
+        if (db != null) return db;
+        synchronized (readers) {
+            if (readers.size() < maxReaders) {
+                db = open();
+                readers.add(db);
+                return db;
+            }
+        }
+        try {
+            return idleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for a database connection", e);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try {
+            setup.configure(connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new PooledConnection(connection);
+    }
+
+    /** Close every connection; the pool must not be used afterwards. */
+    void close() {
+        writeLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writeLock.unlock();
+        }
+        synchronized (readers) {
+            for (PooledConnection db : readers) {
+                db.close();
+            }
+            readers.clear();
+        }
+        idleReaders.clear();
+    }
+}
@@ -0,0 +1,127 @@
+package smtp.mail;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mailbox in a JTable, loaded a page of headers at a time (see MailDatabase.getInboxPage):
+ * the next page is fetched in the background when the viewport comes near the last loaded
+ * row, so opening a large mailbox costs one page, not the whole mailbox.
+ * Columns by name: ID, From, To, Subject, Date, Status.
+ */
+class EmailTableModel extends AbstractTableModel {
+
+    static final int PAGE_SIZE = 200;
+
+    /** Fetches the page after the given email (null: the first page). */
+    interface PageLoader {
+        List<Email> load(Email after, int limit);
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private final String[] columns;
+    private final PageLoader loader;
+    private final List<Email> rows = new ArrayList<>();
+    private JTable table;
+    private boolean loading;
+    private boolean hasMore = true;
+    private int generation; // bumped by refresh, so pages of an older load are dropped
+
+    EmailTableModel(String[] columns, PageLoader loader) {
+        this.columns = columns;
+        this.loader = loader;
+    }
+
+    /** Load more rows whenever the table is scrolled near the end. */
+    void attach(JTable table, JScrollPane scrollPane) {
+        this.table = table;
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> loadIfNeeded());
+        scrollPane.getViewport().addChangeListener(e -> loadIfNeeded());
+    }
+
+    /** Drop the loaded rows and start again from the newest email. */
+    void refresh() {
+        generation++;
+        rows.clear();
+        loading = false;
+        hasMore = true;
+        fireTableDataChanged();
+        loadMore();
+    }
+
+    Email getEmailAt(int row) {
+        return rows.get(row);
+    }
+
+    /** Show the email of this row as read, without reloading anything. */
+    void markRead(int row) {
+        rows.get(row).setRead(true);
+        fireTableRowsUpdated(row, row);
+    }
+
+    private void loadIfNeeded() {
+        if (loading || !hasMore || table == null) return;
+        Rectangle view = table.getVisibleRect();
+        int lastVisible = table.rowAtPoint(new Point(0, view.y + view.height - 1));
+        // -1: the rows end above the bottom of the viewport
+        if (lastVisible < 0 || lastVisible >= rows.size() - PAGE_SIZE / 2) {
+            loadMore();
+        }
+    }
+
+    private void loadMore() {
+        if (loading || !hasMore) return;
+        loading = true;
+        int gen = generation;
+        Email after = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+        new Thread(() -> {
+            List<Email> page = loader.load(after, PAGE_SIZE);
+            SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                loading = false;
+                hasMore = page.size() == PAGE_SIZE;
+                if (!page.isEmpty()) {
+                    int first = rows.size();
+                    rows.addAll(page);
+                    fireTableRowsInserted(first, rows.size() - 1);
+                }
+                // the page may not fill the viewport yet
+                SwingUtilities.invokeLater(this::loadIfNeeded);
+            });
+        }, "mail-page").start();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Email email = rows.get(row);
+        return switch (columns[column]) {
+            case "ID" -> email.getId();
+            case "From" -> email.getSender();
+            case "To" -> email.getRecipient();
+            case "Subject" -> email.getSubject();
+            case "Date" -> email.getSentDate().format(DATE_FORMAT);
+            case "Status" -> email.isRead() ? "Read" : "Unread";
+            default -> null;
+        };
+    }
+}
@@ -5,7 +5,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -15,11 +14,17 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Users and emails in SQLite. Safe to use from several threads: reads share a small pool
+ * of connections, writes go one at a time through a single writer (see ConnectionPool).
+ * Size of the reader pool from -Dsmtp.mail.readers (default 4).
+ */
 public class MailDatabase {
     private static final String DB_PATH = "mail_data/emails.db";
     private static final String ATTACHMENTS_DIR = "mail_data/attachments/";
+    private static final int READERS = Integer.getInteger("smtp.mail.readers", 4);
     private static MailDatabase instance;
-    private Connection connection;
+    private ConnectionPool pool;
 
     private MailDatabase() {
         try {
@@ -34,7 +39,7 @@ public class MailDatabase {
             }
 
             // Kết nối database
-            connection = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            pool = new ConnectionPool("jdbc:sqlite:" + DB_PATH, READERS, MailDatabase::configure);
             initDatabase();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -48,17 +53,22 @@ public class MailDatabase {
         return instance;
     }
 
-    private void initDatabase() throws SQLException {
-        String createUsersTable = """
+    /**
+     * Schema changes, in order: migration i takes a database from user_version i to i + 1,
+     * in one transaction. Never edit a migration that has shipped; append a new one.
+     */
+    private static final String[][] MIGRATIONS = {
+        // 1: các bảng ban đầu (IF NOT EXISTS: databases from before user_version have them)
+        {
+            """
             CREATE TABLE IF NOT EXISTS users (
                 username TEXT PRIMARY KEY,
                 password TEXT NOT NULL,
                 full_name TEXT,
                 created_at TEXT DEFAULT CURRENT_TIMESTAMP
             )
-        """;
-
-        String createEmailsTable = """
+            """,
+            """
             CREATE TABLE IF NOT EXISTS emails (
                 id INTEGER PRIMARY KEY AUTOINCREMENT,
                 sender TEXT NOT NULL,
@@ -70,9 +80,8 @@ public class MailDatabase {
                 FOREIGN KEY (sender) REFERENCES users(username),
                 FOREIGN KEY (recipient) REFERENCES users(username)
             )
-        """;
-
-        String createAttachmentsTable = """
+            """,
+            """
             CREATE TABLE IF NOT EXISTS attachments (
                 id INTEGER PRIMARY KEY AUTOINCREMENT,
                 email_id INTEGER NOT NULL,
@@ -80,33 +89,84 @@ public class MailDatabase {
                 filepath TEXT NOT NULL,
                 FOREIGN KEY (email_id) REFERENCES emails(id)
             )
-        """;
+            """
+        },
+        // 2: indexes for the mailbox queries; id is the rowid, so every index ends with it and
+        // serves the (sent_date, id) keyset order without sorting
+        {
+            "CREATE INDEX IF NOT EXISTS idx_emails_recipient_date ON emails (recipient, sent_date)",
+            "CREATE INDEX IF NOT EXISTS idx_emails_sender_date ON emails (sender, sent_date)",
+            // getUnreadCount counts entries of this (small) index only
+            "CREATE INDEX IF NOT EXISTS idx_emails_unread ON emails (recipient) WHERE is_read = 0",
+            "CREATE INDEX IF NOT EXISTS idx_attachments_email ON attachments (email_id)",
+            "ANALYZE"
+        }
+    };
 
-        Statement stmt = connection.createStatement();
-        stmt.execute(createUsersTable);
-        stmt.execute(createEmailsTable);
-        stmt.execute(createAttachmentsTable);
-        stmt.close();
+    private void initDatabase() throws SQLException {
+        pool.write(db -> {
+            migrate(db.connection);
+            return null;
+        });
 
         // Thêm user mặc định nếu chưa có
         createDefaultUsers();
     }
 
+    /**
+     * Per-connection settings. WAL lets readers run while a write is in progress (and stays
+     * set in the file); synchronous=NORMAL is safe with WAL, a power cut can only lose the
+     * last commits. The page cache and mmap keep the indexes of a large mailbox in memory.
+     */
+    private static void configure(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA busy_timeout = 5000");
+            stmt.execute("PRAGMA cache_size = -16384"); // KiB
+            stmt.execute("PRAGMA mmap_size = 268435456");
+        }
+    }
+
+    /** Bring the schema up to date, see {@link #MIGRATIONS}. */
+    private static void migrate(Connection conn) throws SQLException {
+        int version;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        for (int v = version; v < MIGRATIONS.length; v++) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : MIGRATIONS[v]) {
+                    stmt.execute(sql);
+                }
+                stmt.execute("PRAGMA user_version = " + (v + 1));
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
     private void createDefaultUsers() {
         try {
-            String checkUser = "SELECT COUNT(*) FROM users";
-            Statement stmt = connection.createStatement();
-            ResultSet rs = stmt.executeQuery(checkUser);
-            
-            if (rs.next() && rs.getInt(1) == 0) {
+            int users = pool.read(db -> {
+                try (ResultSet rs = db.prepare("SELECT COUNT(*) FROM users").executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            });
+
+            if (users == 0) {
                 // Thêm một số user mặc định
                 createUser("admin", "admin123", "Administrator");
                 createUser("user1", "pass123", "User One");
                 createUser("user2", "pass123", "User Two");
             }
-            
-            rs.close();
-            stmt.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -115,12 +175,13 @@ public class MailDatabase {
     public boolean createUser(String username, String password, String fullName) {
         String sql = "INSERT INTO users (username, password, full_name) VALUES (?, ?, ?)";
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, username);
-            pstmt.setString(2, password); // Trong thực tế nên hash password
-            pstmt.setString(3, fullName);
-            pstmt.executeUpdate();
-            pstmt.close();
+            pool.write(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+                pstmt.setString(2, password); // Trong thực tế nên hash password
+                pstmt.setString(3, fullName);
+                return pstmt.executeUpdate();
+            });
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -131,19 +192,14 @@ public class MailDatabase {
     public boolean authenticateUser(String username, String password) {
         String sql = "SELECT password FROM users WHERE username = ?";
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            
-            if (rs.next()) {
-                String storedPassword = rs.getString("password");
-                rs.close();
-                pstmt.close();
-                return storedPassword.equals(password);
-            }
-            
-            rs.close();
-            pstmt.close();
+            String storedPassword = pool.read(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString("password") : null;
+                }
+            });
+            return storedPassword != null && storedPassword.equals(password);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -154,15 +210,14 @@ public class MailDatabase {
         List<String> users = new ArrayList<>();
         String sql = "SELECT username FROM users ORDER BY username";
         try {
-            Statement stmt = connection.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-            
-            while (rs.next()) {
-                users.add(rs.getString("username"));
-            }
-            
-            rs.close();
-            stmt.close();
+            pool.read(db -> {
+                try (ResultSet rs = db.prepare(sql).executeQuery()) {
+                    while (rs.next()) {
+                        users.add(rs.getString("username"));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -172,33 +227,32 @@ public class MailDatabase {
     public boolean sendEmail(Email email) {
         String sql = "INSERT INTO emails (sender, recipient, subject, body, sent_date) VALUES (?, ?, ?, ?, ?)";
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, email.getSender());
-            pstmt.setString(2, email.getRecipient());
-            pstmt.setString(3, email.getSubject());
-            pstmt.setString(4, email.getBody());
-            pstmt.setString(5, email.getSentDate().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            
-            int affectedRows = pstmt.executeUpdate();
-            pstmt.close();
-            
-            if (affectedRows > 0) {
-                // Get the last inserted ID using SQLite's last_insert_rowid()
-                Statement stmt = connection.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()");
-                if (rs.next()) {
-                    int emailId = rs.getInt(1);
-                    email.setId(emailId);
-                    
-                    // Lưu attachments nếu có
-                    for (String attachment : email.getAttachments()) {
-                        saveAttachment(emailId, attachment);
-                    }
+            int emailId = pool.write(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, email.getSender());
+                pstmt.setString(2, email.getRecipient());
+                pstmt.setString(3, email.getSubject());
+                pstmt.setString(4, email.getBody());
+                pstmt.setString(5, email.getSentDate().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                if (pstmt.executeUpdate() == 0) {
+                    return 0;
+                }
+
+                // last_insert_rowid() is per connection: the writer's, still ours under the lock
+                try (ResultSet rs = db.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            });
+
+            if (emailId > 0) {
+                email.setId(emailId);
+
+                // Lưu attachments nếu có (copy file ngoài lock của writer)
+                for (String attachment : email.getAttachments()) {
+                    saveAttachment(emailId, attachment);
                 }
-                rs.close();
-                stmt.close();
             }
-            
+
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -217,115 +271,123 @@ public class MailDatabase {
             
             // Lưu vào database
             String sql = "INSERT INTO attachments (email_id, filename, filepath) VALUES (?, ?, ?)";
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setInt(1, emailId);
-            pstmt.setString(2, filename);
-            pstmt.setString(3, destPath);
-            pstmt.executeUpdate();
-            pstmt.close();
+            pool.write(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setInt(1, emailId);
+                pstmt.setString(2, filename);
+                pstmt.setString(3, destPath);
+                return pstmt.executeUpdate();
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public List<Email> getInbox(String username) {
-        List<Email> emails = new ArrayList<>();
-        String sql = "SELECT * FROM emails WHERE recipient = ? ORDER BY sent_date DESC";
-        
+    /** One email by id, body and attachments included, or null if there is none. */
+    public Email getEmailById(int emailId) {
+        String sql = "SELECT * FROM emails WHERE id = ?";
+        String attachSql = "SELECT filepath FROM attachments WHERE email_id = ? ORDER BY id";
+
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            
-            while (rs.next()) {
-                Email email = new Email();
-                email.setId(rs.getInt("id"));
-                email.setSender(rs.getString("sender"));
-                email.setRecipient(rs.getString("recipient"));
-                email.setSubject(rs.getString("subject"));
-                email.setBody(rs.getString("body"));
-                email.setSentDate(LocalDateTime.parse(rs.getString("sent_date"), 
-                    DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-                email.setRead(rs.getInt("is_read") == 1);
-                
-                // Load attachments
-                email.setAttachments(getAttachments(email.getId()));
-                
-                emails.add(email);
-            }
-            
-            rs.close();
-            pstmt.close();
+            return pool.read(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setInt(1, emailId);
+                Email email;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    email = readEmail(rs);
+                }
+
+                pstmt = db.prepare(attachSql);
+                pstmt.setInt(1, emailId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        email.addAttachment(rs.getString("filepath"));
+                    }
+                }
+                return email;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        
-        return emails;
+        return null;
     }
 
-    public List<Email> getSentEmails(String username) {
+    /**
+     * One page of the inbox, newest first: the emails received just before after (the last
+     * email of the previous page, null for the first page). Headers only, see {@link #readHeader}.
+     */
+    public List<Email> getInboxPage(String username, Email after, int limit) {
+        return loadHeaders("recipient", username, after, limit);
+    }
+
+    /** One page of the sent emails, like {@link #getInboxPage}. */
+    public List<Email> getSentPage(String username, Email after, int limit) {
+        return loadHeaders("sender", username, after, limit);
+    }
+
+    // keyset pagination: continue after the (sent_date, id) of the last row seen, so a page
+    // costs the same deep in the mailbox as at the top, unlike OFFSET
+    private List<Email> loadHeaders(String column, String username, Email after, int limit) {
         List<Email> emails = new ArrayList<>();
-        String sql = "SELECT * FROM emails WHERE sender = ? ORDER BY sent_date DESC";
-        
+        String sql = "SELECT id, sender, recipient, subject, sent_date, is_read FROM emails WHERE "
+                + column + " = ?" + (after == null ? "" : " AND (sent_date, id) < (?, ?)")
+                + " ORDER BY sent_date DESC, id DESC LIMIT ?";
+
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            
-            while (rs.next()) {
-                Email email = new Email();
-                email.setId(rs.getInt("id"));
-                email.setSender(rs.getString("sender"));
-                email.setRecipient(rs.getString("recipient"));
-                email.setSubject(rs.getString("subject"));
-                email.setBody(rs.getString("body"));
-                email.setSentDate(LocalDateTime.parse(rs.getString("sent_date"), 
-                    DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-                email.setRead(rs.getInt("is_read") == 1);
-                
-                email.setAttachments(getAttachments(email.getId()));
-                
-                emails.add(email);
-            }
-            
-            rs.close();
-            pstmt.close();
+            pool.read(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                int i = 1;
+                pstmt.setString(i++, username);
+                if (after != null) {
+                    pstmt.setString(i++, after.getSentDate().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                    pstmt.setInt(i++, after.getId());
+                }
+                pstmt.setInt(i, limit);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        emails.add(readHeader(rs));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        
+
         return emails;
     }
 
-    private List<String> getAttachments(int emailId) {
-        List<String> attachments = new ArrayList<>();
-        String sql = "SELECT filepath FROM attachments WHERE email_id = ?";
-        
-        try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setInt(1, emailId);
-            ResultSet rs = pstmt.executeQuery();
-            
-            while (rs.next()) {
-                attachments.add(rs.getString("filepath"));
-            }
-            
-            rs.close();
-            pstmt.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        
-        return attachments;
+    /** One row of emails, without its attachments. */
+    private Email readEmail(ResultSet rs) throws SQLException {
+        Email email = readHeader(rs);
+        email.setBody(rs.getString("body"));
+        return email;
+    }
+
+    /** The header columns of a row: body null and no attachments (not loaded). */
+    private Email readHeader(ResultSet rs) throws SQLException {
+        Email email = new Email();
+        email.setId(rs.getInt("id"));
+        email.setSender(rs.getString("sender"));
+        email.setRecipient(rs.getString("recipient"));
+        email.setSubject(rs.getString("subject"));
+        email.setSentDate(LocalDateTime.parse(rs.getString("sent_date"),
+            DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        email.setRead(rs.getInt("is_read") == 1);
+        return email;
     }
 
     public void markAsRead(int emailId) {
         String sql = "UPDATE emails SET is_read = 1 WHERE id = ?";
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setInt(1, emailId);
-            pstmt.executeUpdate();
-            pstmt.close();
+            pool.write(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setInt(1, emailId);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -334,19 +396,13 @@ public class MailDatabase {
     public int getUnreadCount(String username) {
         String sql = "SELECT COUNT(*) FROM emails WHERE recipient = ? AND is_read = 0";
         try {
-            PreparedStatement pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            
-            if (rs.next()) {
-                int count = rs.getInt(1);
-                rs.close();
-                pstmt.close();
-                return count;
-            }
-            
-            rs.close();
-            pstmt.close();
+            return pool.read(db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -354,12 +410,8 @@ public class MailDatabase {
     }
 
     public void close() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (pool != null) {
+            pool.close();
         }
     }
 }
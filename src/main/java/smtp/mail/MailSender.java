@@ -1,7 +1,6 @@
 package smtp.mail;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.io.File;
 import java.time.format.DateTimeFormatter;
@@ -15,7 +14,7 @@ public class MailSender extends JPanel {
     private JTextArea bodyArea;
     private List<File> attachments = new ArrayList<>();
     private JTable inboxTable, sentTable;
-    private DefaultTableModel inboxModel, sentModel;
+    private EmailTableModel inboxModel, sentModel;
     private JLabel unreadLabel;
     private MailDatabase mailDB;
 
@@ -112,12 +111,7 @@ public class MailSender extends JPanel {
         JPanel panel = new JPanel(new BorderLayout());
         
         String[] columns = {"ID", "From", "Subject", "Date", "Status"};
-        inboxModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        inboxModel = new EmailTableModel(columns, (after, limit) -> mailDB.getInboxPage(currentUser, after, limit));
         inboxTable = new JTable(inboxModel);
         inboxTable.getColumnModel().getColumn(0).setPreferredWidth(50);
         inboxTable.getColumnModel().getColumn(1).setPreferredWidth(100);
@@ -126,6 +120,7 @@ public class MailSender extends JPanel {
         inboxTable.getColumnModel().getColumn(4).setPreferredWidth(80);
         
         JScrollPane scrollPane = new JScrollPane(inboxTable);
+        inboxModel.attach(inboxTable, scrollPane);
         panel.add(scrollPane, BorderLayout.CENTER);
         
         JPanel buttonPanel = new JPanel();
@@ -149,12 +144,7 @@ public class MailSender extends JPanel {
         JPanel panel = new JPanel(new BorderLayout());
         
         String[] columns = {"ID", "To", "Subject", "Date"};
-        sentModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        sentModel = new EmailTableModel(columns, (after, limit) -> mailDB.getSentPage(currentUser, after, limit));
         sentTable = new JTable(sentModel);
         sentTable.getColumnModel().getColumn(0).setPreferredWidth(50);
         sentTable.getColumnModel().getColumn(1).setPreferredWidth(100);
@@ -162,6 +152,7 @@ public class MailSender extends JPanel {
         sentTable.getColumnModel().getColumn(3).setPreferredWidth(150);
         
         JScrollPane scrollPane = new JScrollPane(sentTable);
+        sentModel.attach(sentTable, scrollPane);
         panel.add(scrollPane, BorderLayout.CENTER);
         
         JPanel buttonPanel = new JPanel();
@@ -216,53 +207,29 @@ public class MailSender extends JPanel {
         return panel;
     }
 
+    // chỉ load trang đầu, các trang sau load khi cuộn xuống
     private void refreshInbox() {
-        inboxModel.setRowCount(0);
-        List<Email> emails = mailDB.getInbox(currentUser);
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
-        
-        for (Email email : emails) {
-            inboxModel.addRow(new Object[] {
-                email.getId(),
-                email.getSender(),
-                email.getSubject(),
-                email.getSentDate().format(formatter),
-                email.isRead() ? "Read" : "Unread"
-            });
-        }
+        inboxModel.refresh();
     }
 
     private void refreshSent() {
-        sentModel.setRowCount(0);
-        List<Email> emails = mailDB.getSentEmails(currentUser);
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
-        
-        for (Email email : emails) {
-            sentModel.addRow(new Object[] {
-                email.getId(),
-                email.getRecipient(),
-                email.getSubject(),
-                email.getSentDate().format(formatter)
-            });
-        }
+        sentModel.refresh();
     }
 
     private void viewSelectedEmail(JTable table, boolean isInbox) {
         int selectedRow = table.getSelectedRow();
         if (selectedRow >= 0) {
-            int emailId = (int) table.getValueAt(selectedRow, 0);
-            
-            // Get email details from database
-            List<Email> emails = isInbox ? mailDB.getInbox(currentUser) : mailDB.getSentEmails(currentUser);
-            Email email = emails.stream()
-                .filter(e -> e.getId() == emailId)
-                .findFirst()
-                .orElse(null);
-            
+            EmailTableModel model = isInbox ? inboxModel : sentModel;
+            int row = table.convertRowIndexToModel(selectedRow);
+            Email header = model.getEmailAt(row);
+
+            // Bảng chỉ có header: load body và attachments theo id
+            Email email = mailDB.getEmailById(header.getId());
+
             if (email != null) {
-                if (isInbox && !email.isRead()) {
-                    mailDB.markAsRead(emailId);
-                    refreshInbox();
+                if (isInbox && !header.isRead()) {
+                    mailDB.markAsRead(email.getId());
+                    model.markRead(row);
                     updateUnreadCount();
                 }
                 
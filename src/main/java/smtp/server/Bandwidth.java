@@ -0,0 +1,84 @@
+package smtp.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bandwidth limits of the file port, in bytes per second (0 = unlimited), per direction:
+ * one limit for all transfers together and one per client name, shared by all of that
+ * client's connections (a parallel transfer does not get four times the share). A client
+ * without its own limit gets the default one. Everything can be changed while transfers run.
+ * Only the file port is limited, so a large download cannot crowd out the control channel
+ * as long as the global limit leaves room for it.
+ *
+ * Initial values from -Dsmtp.bandwidth.globalDown / globalUp / clientDown / clientUp.
+ */
+final class Bandwidth {
+
+    /** As seen from the client: DOWN = server sending. */
+    enum Direction { DOWN, UP }
+
+    private final RateLimiter globalDown = new RateLimiter(Long.getLong("smtp.bandwidth.globalDown", 0));
+    private final RateLimiter globalUp = new RateLimiter(Long.getLong("smtp.bandwidth.globalUp", 0));
+    private volatile long clientDown = Long.getLong("smtp.bandwidth.clientDown", 0);
+    private volatile long clientUp = Long.getLong("smtp.bandwidth.clientUp", 0);
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+
+    /** One client's buckets, and whether their rates were set for this client rather than defaulted. */
+    static final class Client {
+        final RateLimiter down;
+        final RateLimiter up;
+        volatile boolean custom;
+
+        Client(long down, long up) {
+            this.down = new RateLimiter(down);
+            this.up = new RateLimiter(up);
+        }
+    }
+
+    /** The buckets of this client name (created with the default limits on first use). */
+    Client client(String name) {
+        return clients.computeIfAbsent(name, n -> new Client(clientDown, clientUp));
+    }
+
+    RateLimiter global(Direction d) {
+        return d == Direction.DOWN ? globalDown : globalUp;
+    }
+
+    void setGlobal(long down, long up) {
+        globalDown.setRate(down);
+        globalUp.setRate(up);
+    }
+
+    long clientDefault(Direction d) {
+        return d == Direction.DOWN ? clientDown : clientUp;
+    }
+
+    /** New default per-client limits; clients with their own limits keep them. */
+    void setClientDefault(long down, long up) {
+        clientDown = down;
+        clientUp = up;
+        for (Client c : clients.values()) {
+            if (!c.custom) {
+                c.down.setRate(down);
+                c.up.setRate(up);
+            }
+        }
+    }
+
+    /** Limits for one client name, kept when the defaults change. */
+    void setClient(String name, long down, long up) {
+        Client c = client(name);
+        c.custom = true;
+        c.down.setRate(down);
+        c.up.setRate(up);
+    }
+
+    /** Back to the default limits for this client name. */
+    void clearClient(String name) {
+        Client c = client(name);
+        c.custom = false;
+        c.down.setRate(clientDown);
+        c.up.setRate(clientUp);
+    }
+}
@@ -0,0 +1,104 @@
+package smtp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control connection served by one (platform or virtual) thread blocking in readUTF
+ * (or {@link FrameCodec#read} after the binary handshake),
+ * plus a writer thread of the same kind draining the client's {@link OutboundQueue}.
+ * Used when the control listener runs in PLATFORM or VIRTUAL mode.
+ */
+final class BlockingControlConnection implements ControlConnection, Runnable {
+
+    private final SocketChannel channel;
+    private final ExecutionMode mode;
+    private final ServerWorker worker;
+    private final OutboundQueue outbound = OutboundQueue.fromConfig();
+    private volatile boolean closed;
+    private boolean binary; // reader thread only
+
+    BlockingControlConnection(SocketChannel channel, ExecutionMode mode, FileServer server) {
+        this.channel = channel;
+        this.mode = mode;
+        this.worker = new ServerWorker(this, server);
+    }
+
+    @Override
+    public void write(ByteBuffer frame, boolean presence) {
+        if (closed) return;
+        if (!outbound.offer(frame, presence)) {
+            worker.onSlowConsumer();
+            close();
+        }
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        outbound.close();
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void switchToBinary() {
+        binary = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream out = channel.socket().getOutputStream();
+            mode.startThread("control-writer-" + channel.socket().getPort(), () -> writeLoop(out));
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            while (true) {
+                // blocks
+                if (binary) worker.onFrame(FrameCodec.read(dis));
+                else worker.onMessage(dis.readUTF());
+            }
+        } catch (IOException e) {
+            // EOF, QUIT or server shutdown
+        } finally {
+            close();
+            worker.onClosed();
+        }
+    }
+
+    /**
+     * Writes everything already queued into one buffer and flushes once per batch
+     * (at most CONTROL_BATCH_BYTES), so a burst of frames costs one syscall, not one each.
+     * Never waits for more frames before flushing.
+     */
+    private void writeLoop(OutputStream socketOut) {
+        BufferedOutputStream out = new BufferedOutputStream(socketOut, ServerConfig.CONTROL_BATCH_BYTES);
+        try {
+            while (!closed) {
+                ByteBuffer frame = outbound.poll(1, TimeUnit.SECONDS);
+                if (frame == null) continue;
+                int batched = 0;
+                do {
+                    out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    batched += frame.remaining();
+                } while (batched < ServerConfig.CONTROL_BATCH_BYTES && (frame = outbound.poll()) != null);
+                out.flush();
+                if (outbound.isEmpty() && outbound.takeRosterStale()) worker.resyncPresence();
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package smtp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * File bodies on the file port bypass the Java heap: headers still go through
+ * DataInput/DataOutput streams, file bytes through FileChannel.transferTo (sendfile on Linux)
+ * when sending and a direct buffer when receiving. Used by FileTransferWorker and FilePanel.
+ */
+public final class ChannelIO {
+
+    private static final int RECEIVE_CHUNK = 256 * 1024;
+    private static final int FALLBACK_CHUNK = 64 * 1024;
+    // direct buffers of RECEIVE_CHUNK bytes handed back after use: allocating one costs a
+    // zeroed off-heap block freed only by a GC. Shared rather than per thread, since each file
+    // connection may run on its own short-lived virtual thread
+    private static final BlockingQueue<ByteBuffer> IDLE_BUFFERS =
+            new ArrayBlockingQueue<>(Integer.getInteger("smtp.transfer.directBuffers", 32));
+
+    private ChannelIO() {
+    }
+
+    /**
+     * Buffered stream for reading headers from a blocking channel. The buffer may already hold
+     * the first bytes of a file body, so {@link #transferTo} hands those over before switching
+     * to the channel.
+     * Not a BufferedInputStream: its subclasses lock with synchronized, which pins a virtual
+     * thread to its carrier while a read blocks, and an idle session blocks in read indefinitely.
+     */
+    public static final class HeaderInput extends InputStream {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final ReadableByteChannel channel;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private final ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        private int pos;
+        private int count;
+
+        public HeaderInput(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean fill() throws IOException {
+            wrapped.clear();
+            int n = channel.read(wrapped);
+            pos = 0;
+            count = Math.max(n, 0);
+            return n > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= count && !fill()) return -1;
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            if (pos >= count) {
+                // large reads skip the buffer
+                if (len >= BUFFER_SIZE) return channel.read(ByteBuffer.wrap(b, off, len));
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return count - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /** Copy exactly length bytes into the file at position; EOFException if the peer stops early. */
+        public void transferTo(FileChannel file, long position, long length) throws IOException {
+            transferTo(file, position, length, null, null);
+        }
+
+        /** Same, also feeding every byte written into sum (null = no checksum). */
+        public void transferTo(FileChannel file, long position, long length, Checksum sum) throws IOException {
+            transferTo(file, position, length, sum, null);
+        }
+
+        /** Same, also feeding every byte written into sum and digest (either may be null). */
+        public void transferTo(FileChannel file, long position, long length, Checksum sum, MessageDigest digest)
+                throws IOException {
+            long done = 0;
+            if (pos < count && length > 0) {
+                int n = (int) Math.min(count - pos, length);
+                if (sum != null) sum.update(buf, pos, n);
+                if (digest != null) digest.update(buf, pos, n);
+                ByteBuffer head = ByteBuffer.wrap(buf, pos, n);
+                while (head.hasRemaining()) done += file.write(head, position + done);
+                pos += n;
+            }
+            // transferFrom has no socket->file fast path and copies 8 KB at a time,
+            // so use one large direct buffer: still no heap copy, far fewer syscalls
+            if (done == length) return;
+            ByteBuffer direct = borrowBuffer();
+            try {
+                while (done < length) {
+                    direct.clear().limit((int) Math.min(direct.capacity(), length - done));
+                    if (channel.read(direct) < 0) {
+                        throw new EOFException("connection closed after " + done + " of " + length + " bytes");
+                    }
+                    direct.flip();
+                    feed(direct, sum, digest);
+                    while (direct.hasRemaining()) done += file.write(direct, position + done);
+                }
+            } finally {
+                returnBuffer(direct);
+            }
+        }
+    }
+
+    /** Send length bytes of the file starting at position. Caller flushes its header stream first. */
+    public static void sendFile(FileChannel file, long position, long length, WritableByteChannel out)
+            throws IOException {
+        long done = 0;
+        ByteBuffer fallback = null;
+        while (done < length) {
+            long n = out instanceof ThrottledChannel t
+                    ? t.transferFrom(file, position + done, length - done)
+                    : file.transferTo(position + done, length - done, out);
+            if (n == 0) {
+                // virtual threads run sockets non-blocking underneath, so sendfile gives up when the
+                // socket buffer is full; a plain write parks until it drains, then sendfile resumes
+                if (fallback == null) fallback = ByteBuffer.allocateDirect(FALLBACK_CHUNK);
+                n = copyChunk(file, position + done, length - done, out, fallback);
+            }
+            done += n;
+        }
+    }
+
+    private static int copyChunk(FileChannel file, long position, long max, WritableByteChannel out, ByteBuffer buf)
+            throws IOException {
+        buf.clear().limit((int) Math.min(buf.capacity(), max));
+        int n = file.read(buf, position);
+        if (n <= 0) throw new EOFException("file ended at " + position);
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        return n;
+    }
+
+    /** CRC32C of the first length bytes of the file (one sequential read). */
+    public static long crc32c(FileChannel file, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        update(crc, file, length);
+        return crc.getValue();
+    }
+
+    /** Feed the first length bytes of the file into sum. */
+    public static void update(Checksum sum, FileChannel file, long length) throws IOException {
+        update(sum, null, file, length);
+    }
+
+    /** Feed the first length bytes of the file into sum and digest (either may be null), in one read. */
+    public static void update(Checksum sum, MessageDigest digest, FileChannel file, long length) throws IOException {
+        ByteBuffer direct = borrowBuffer();
+        try {
+            long done = 0;
+            while (done < length) {
+                direct.clear().limit((int) Math.min(direct.capacity(), length - done));
+                int n = file.read(direct, done);
+                if (n < 0) throw new EOFException("file ended after " + done + " of " + length + " bytes");
+                direct.flip();
+                feed(direct, sum, digest);
+                done += n;
+            }
+        } finally {
+            returnBuffer(direct);
+        }
+    }
+
+    private static ByteBuffer borrowBuffer() {
+        ByteBuffer direct = IDLE_BUFFERS.poll();
+        return direct != null ? direct : ByteBuffer.allocateDirect(RECEIVE_CHUNK);
+    }
+
+    // kept for the next transfer unless enough are idle already
+    private static void returnBuffer(ByteBuffer direct) {
+        IDLE_BUFFERS.offer(direct.clear());
+    }
+
+    // leaves buf as it was, ready to be written out
+    private static void feed(ByteBuffer buf, Checksum sum, MessageDigest digest) {
+        int start = buf.position();
+        if (sum != null) {
+            sum.update(buf);
+            buf.position(start);
+        }
+        if (digest != null) {
+            digest.update(buf);
+            buf.position(start);
+        }
+    }
+
+    /** A new SHA-256 digest (every JDK has one). */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package smtp.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connected control clients indexed by display name.
+ *
+ * Several connections may use the same name (e.g. the same user on two machines);
+ * they share one entry and all of them receive PMs sent to that name.
+ * Each entry is an immutable array replaced atomically, so lookups never lock
+ * and register/unregister only contend with operations on the same name.
+ */
+final class ClientRegistry {
+
+    private static final ServerWorker[] NONE = new ServerWorker[0];
+
+    private final ConcurrentHashMap<String, ServerWorker[]> byName = new ConcurrentHashMap<>();
+
+    /** @return true if this is the first connection using the worker's name */
+    boolean register(ServerWorker w) {
+        ServerWorker[] after = byName.merge(w.getClientName(), new ServerWorker[] {w}, (old, added) -> {
+            ServerWorker[] copy = Arrays.copyOf(old, old.length + 1);
+            copy[old.length] = w;
+            return copy;
+        });
+        return after.length == 1;
+    }
+
+    /** @return true if the name has no connections left */
+    boolean unregister(ServerWorker w) {
+        boolean[] last = {false};
+        byName.computeIfPresent(w.getClientName(), (name, old) -> {
+            int i = indexOf(old, w);
+            if (i < 0) return old;
+            if (old.length == 1) {
+                last[0] = true;
+                return null;
+            }
+            ServerWorker[] copy = new ServerWorker[old.length - 1];
+            System.arraycopy(old, 0, copy, 0, i);
+            System.arraycopy(old, i + 1, copy, i, old.length - i - 1);
+            return copy;
+        });
+        return last[0];
+    }
+
+    /** All connections using this name; empty if none. */
+    ServerWorker[] lookup(String name) {
+        ServerWorker[] found = byName.get(name);
+        return found != null ? found : NONE;
+    }
+
+    /** Distinct display names currently online, sorted. */
+    List<String> names() {
+        List<String> names = new ArrayList<>(byName.keySet());
+        names.sort(null);
+        return names;
+    }
+
+    /** Every connection, each name group in turn. Weakly consistent. */
+    Iterable<ServerWorker[]> groups() {
+        return byName.values();
+    }
+
+    private static int indexOf(ServerWorker[] arr, ServerWorker w) {
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == w) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,65 @@
+package smtp.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each accepted connection as one task on a thread-per-task executor,
+ * with at most maxConnections running at once. When the limit is reached the
+ * accept loop waits for a slot, so excess clients queue in the listen backlog.
+ */
+final class ConnectionDispatcher {
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Set<SocketChannel> open = ConcurrentHashMap.newKeySet();
+
+    ConnectionDispatcher(ExecutionMode mode, String threadPrefix, int maxConnections) {
+        this.executor = mode.newExecutor(threadPrefix);
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    void dispatch(SocketChannel channel, Runnable task) throws InterruptedException {
+        permits.acquire();
+        open.add(channel);
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    open.remove(channel);
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            open.remove(channel);
+            permits.release();
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Stop taking work, give running tasks up to graceMillis to finish,
+     * then close their sockets so blocked reads return.
+     */
+    void shutdown(long graceMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) {
+                for (SocketChannel ch : open) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+                executor.shutdownNow();
+                executor.awaitTermination(graceMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
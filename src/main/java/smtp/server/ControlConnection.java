@@ -0,0 +1,23 @@
+package smtp.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport underneath a {@link ServerWorker}: delivers encoded frames to one client.
+ */
+interface ControlConnection {
+
+    /**
+     * Queue an encoded frame for this client's writer. Never blocks.
+     * @param presence true for roster frames, which the COALESCE overflow policy may replace
+     */
+    void write(ByteBuffer frame, boolean presence);
+
+    void close();
+
+    /** The client sent {@link FrameCodec#HANDSHAKE}: parse everything after it as binary frames. */
+    void switchToBinary();
+
+    /** The client's outbound queue, for metrics. */
+    OutboundQueue outbound();
+}
@@ -0,0 +1,144 @@
+package smtp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many control connections.
+ * Other threads talk to the loop only through {@link #execute(Runnable)}.
+ *
+ * Each iteration ("tick"): run queued tasks, handle ready keys, then flush every
+ * connection that got frames during the tick. Frames queued in one tick therefore
+ * leave in one gathering write per connection, at most one tick after they were queued.
+ */
+final class ControlEventLoop implements Runnable {
+
+    // shared by all connections of this loop; a frame is at most 2 + 65535 bytes
+    private static final int READ_BUFFER = 128 * 1024;
+
+    private final FileServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+    // connections with frames to write at the end of this tick (loop thread only)
+    private final ArrayList<NioControlConnection> dirty = new ArrayList<>();
+    private final ByteBuffer[] gather = new ByteBuffer[ServerConfig.CONTROL_BATCH_FRAMES];
+    private Thread thread;
+
+    ControlEventLoop(FileServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Hand over a freshly accepted channel; the loop owns it from now on. */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioControlConnection conn = new NioControlConnection(channel, key, this, server);
+                key.attach(conn);
+            } catch (IOException e) {
+                server.getUi().log("Control register error: " + e.getMessage());
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    /** Scratch array for building one connection's gathering write (loop thread only). */
+    ByteBuffer[] gatherBuffers() {
+        return gather;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Flush this connection at the end of the current tick. Loop thread only. */
+    void markDirty(NioControlConnection conn) {
+        dirty.add(conn);
+    }
+
+    /** Close every connection of this loop, then the selector itself. */
+    void shutdown() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                NioControlConnection conn = (NioControlConnection) key.attachment();
+                if (conn != null) conn.closeNow();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                // work queued by the loop itself must not wait for the next wakeup
+                if (tasks.isEmpty() && dirty.isEmpty()) selector.select();
+                else selector.selectNow();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioControlConnection conn = (NioControlConnection) key.attachment();
+                    if (conn == null || !key.isValid()) continue;
+                    if (key.isReadable()) conn.onReadable();
+                    if (key.isValid() && key.isWritable()) conn.onWritable();
+                }
+                flushDirty();
+            }
+        } catch (ClosedSelectorException ignored) {
+            // shutdown
+        } catch (IOException e) {
+            server.getUi().log("Control loop error: " + e.getMessage());
+        }
+    }
+
+    private void flushDirty() {
+        // connections marked while flushing (e.g. a roster resync) wait for the next tick
+        int n = dirty.size();
+        for (int i = 0; i < n; i++) {
+            dirty.get(i).flush();
+        }
+        dirty.subList(0, n).clear();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                server.getUi().log("Control task error: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package smtp.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * rsync-style delta transfer for UPLOAD_DELTA (see FileTransferWorker): the server describes
+ * the copy it has as block signatures, the client finds those blocks anywhere in its new
+ * version, at any offset, with a rolling checksum, and sends only the bytes in between plus
+ * "copy block i" instructions, from which the server rebuilds the new version.
+ *
+ * Signatures: writeLong(size of the server copy), writeInt(block size), then per block
+ * writeInt(weak checksum) and the first 16 bytes of its SHA-256. The last block may be short.
+ * Instructions: COPY + writeInt(first block) + writeInt(count), DATA + writeInt(length) + bytes
+ * (at most MAX_DATA), END.
+ */
+public final class DeltaSync {
+
+    public static final int COPY = 1;
+    public static final int DATA = 2;
+    public static final int END = 0;
+
+    static final int MAX_DATA = 64 * 1024;
+    private static final int STRONG_BYTES = 16;
+    private static final int MIN_BLOCK = 2 * 1024;
+    private static final int MAX_BLOCK = 128 * 1024;
+    private static final int MAX_BLOCKS = 4 << 20;
+
+    private DeltaSync() {
+    }
+
+    /** The server copy's blocks, as the client sees them. */
+    public static final class Signatures {
+        final long size;             // of the server copy
+        final int blockSize;
+        final int count;
+        final int[] weak;
+        final byte[] strong;         // STRONG_BYTES per block
+        // blocks by the low 16 bits of their weak checksum, chained through next
+        final int[] head = new int[1 << 16];
+        final int[] next;
+
+        Signatures(long size, int blockSize, int count, int[] weak, byte[] strong) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.count = count;
+            this.weak = weak;
+            this.strong = strong;
+            this.next = new int[count];
+            Arrays.fill(head, -1);
+            for (int i = count - 1; i >= 0; i--) {
+                int tag = tag(weak[i]);
+                next[i] = head[tag];
+                head[tag] = i;
+            }
+        }
+
+        int lastLength() {
+            return count == 0 ? 0 : (int) (size - (long) (count - 1) * blockSize);
+        }
+    }
+
+    /** About the square root of the size, as rsync does: few signatures for large files, fine blocks for small ones. */
+    static int blockSize(long size) {
+        long b = (long) Math.sqrt((double) size) & ~1023L;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, b));
+    }
+
+    /** Server side: signatures of the first size bytes of file (one sequential read). */
+    static void sendSignatures(FileChannel file, long size, DataOutputStream out) throws IOException {
+        int bs = blockSize(size);
+        long count = (size + bs - 1) / bs;
+        out.writeLong(size);
+        out.writeInt(bs);
+        MessageDigest sha = ChannelIO.sha256();
+        ByteBuffer block = ByteBuffer.allocate(bs);
+        for (long i = 0; i < count; i++) {
+            int len = (int) Math.min(bs, size - i * bs);
+            block.clear().limit(len);
+            while (block.hasRemaining()) {
+                if (file.read(block, i * bs + block.position()) < 0) throw new EOFException("file ended in block " + i);
+            }
+            out.writeInt(weak(block.array(), 0, len));
+            sha.update(block.array(), 0, len);
+            out.write(sha.digest(), 0, STRONG_BYTES);
+        }
+        out.flush();
+    }
+
+    /** Client side: the signatures sent by {@link #sendSignatures}. */
+    public static Signatures readSignatures(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        int bs = in.readInt();
+        long blocks = bs < 1 ? -1 : (size + bs - 1) / bs;
+        if (bs > MAX_BLOCK || blocks < 0 || blocks > MAX_BLOCKS) {
+            throw new ProtocolException("bad signatures: " + size + " bytes in blocks of " + bs);
+        }
+        int count = (int) blocks;
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_BYTES];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+        return new Signatures(size, bs, count, weak, strong);
+    }
+
+    /**
+     * Client side: send instructions that rebuild file from the server's copy. Returns the
+     * bytes of the file sent as DATA (the rest is copied on the server).
+     */
+    public static long sendDelta(FileChannel file, Signatures sig, DataOutputStream out) throws IOException {
+        return new Scanner(file, sig, out).run();
+    }
+
+    /** The client's side of one delta: a window rolling over the file, matched against the signatures. */
+    private static final class Scanner {
+        private final FileChannel file;
+        private final Signatures sig;
+        private final DataOutputStream out;
+        private final int bs;
+        private final long fileSize;
+        private final MessageDigest sha = ChannelIO.sha256();
+        // file bytes [base, base + filled) are in buf; pos and lit index buf
+        private final byte[] buf;
+        private long base;
+        private int filled;
+        private int pos;      // start of the window
+        private int lit;      // start of the bytes not yet sent or matched
+        private int pendingFirst = -1;
+        private int pendingCount;
+        private long literal;
+
+        Scanner(FileChannel file, Signatures sig, DataOutputStream out) throws IOException {
+            this.file = file;
+            this.sig = sig;
+            this.out = out;
+            this.bs = sig.blockSize;
+            this.fileSize = file.size();
+            this.buf = new byte[MAX_DATA + 2 * bs + 256 * 1024];
+        }
+
+        long run() throws IOException {
+            fill();
+            boolean fresh = true;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (!ensure(bs)) break; // less than a block left
+                if (fresh) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < bs; i++) {
+                        int x = buf[pos + i] & 0xff;
+                        a += x;
+                        b += (bs - i) * x;
+                    }
+                    fresh = false;
+                }
+                int block = find((a & 0xffff) | (b << 16), pos, bs);
+                if (block >= 0) {
+                    copy(block);
+                    pos += bs;
+                    lit = pos;
+                    fresh = true;
+                    continue;
+                }
+                if (!ensure(bs + 1)) break; // the window cannot roll any further
+                int outByte = buf[pos] & 0xff;
+                int inByte = buf[pos + bs] & 0xff;
+                a += inByte - outByte;
+                b += a - bs * outByte;
+                pos++;
+                if (pos - lit >= MAX_DATA) data(lit, pos - lit);
+            }
+            // the tail: the server's short last block, or new bytes
+            int tail = filled - pos;
+            int last = sig.count - 1;
+            if (tail > 0 && tail < bs && tail == sig.lastLength() && find(weak(buf, pos, tail), pos, tail) == last) {
+                copy(last);
+                pos += tail;
+                lit = pos;
+            }
+            data(lit, filled - lit);
+            flushCopy();
+            out.writeByte(END);
+            out.flush();
+            return literal;
+        }
+
+        // a block whose weak and strong checksums match len bytes at off, or -1
+        private int find(int weak, int off, int len) {
+            int i = sig.head[tag(weak)];
+            byte[] digest = null;
+            while (i >= 0) {
+                if (sig.weak[i] == weak) {
+                    if (digest == null) {
+                        sha.update(buf, off, len);
+                        digest = sha.digest();
+                    }
+                    if (Arrays.equals(digest, 0, STRONG_BYTES, sig.strong, i * STRONG_BYTES, (i + 1) * STRONG_BYTES)) {
+                        return i;
+                    }
+                }
+                i = sig.next[i];
+            }
+            return -1;
+        }
+
+        private void copy(int block) throws IOException {
+            if (lit < pos) data(lit, pos - lit);
+            if (pendingFirst >= 0 && block == pendingFirst + pendingCount) {
+                pendingCount++; // runs of consecutive blocks go as one instruction
+                return;
+            }
+            flushCopy();
+            pendingFirst = block;
+            pendingCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (pendingFirst < 0) return;
+            out.writeByte(COPY);
+            out.writeInt(pendingFirst);
+            out.writeInt(pendingCount);
+            pendingFirst = -1;
+        }
+
+        // in pieces of at most MAX_DATA: the tail can be up to a block longer than that
+        private void data(int from, int len) throws IOException {
+            if (len <= 0) return;
+            flushCopy();
+            for (int done = 0; done < len; ) {
+                int n = Math.min(MAX_DATA, len - done);
+                out.writeByte(DATA);
+                out.writeInt(n);
+                out.write(buf, from + done, n);
+                done += n;
+            }
+            literal += len;
+            lit = from + len;
+        }
+
+        // at least n bytes from pos in buf, reading more if the file has them; false at the end
+        private boolean ensure(int n) throws IOException {
+            if (filled - pos >= n) return true;
+            if (base + filled == fileSize) return false;
+            // drop what was sent or matched already
+            System.arraycopy(buf, lit, buf, 0, filled - lit);
+            base += lit;
+            filled -= lit;
+            pos -= lit;
+            lit = 0;
+            fill();
+            return filled - pos >= n;
+        }
+
+        private void fill() throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, filled, buf.length - filled);
+            while (bb.hasRemaining() && base + filled < fileSize) {
+                int n = file.read(bb, base + filled);
+                if (n < 0) throw new EOFException("file shrank while being read");
+                filled += n;
+            }
+        }
+    }
+
+    /**
+     * Server side: rebuild the new version into target from the instructions and the old copy,
+     * feeding every byte written into sum and digest. Returns the length written; throws
+     * ProtocolException past maxLength or for blocks the old copy does not have.
+     */
+    static long applyDelta(DataInputStream in, FileChannel old, long oldSize, FileChannel target, long maxLength,
+                           Checksum sum, MessageDigest digest) throws IOException {
+        int bs = blockSize(oldSize);
+        long blocks = (oldSize + bs - 1) / bs;
+        byte[] buf = new byte[Math.max(MAX_DATA, bs)];
+        long written = 0;
+        while (true) {
+            int op = in.readUnsignedByte();
+            if (op == END) return written;
+            if (op == COPY) {
+                long first = in.readInt();
+                long count = in.readInt();
+                if (first < 0 || count < 1 || first + count > blocks) {
+                    throw new ProtocolException("copy of blocks " + first + "+" + count + " of " + blocks);
+                }
+                long from = first * bs;
+                long len = Math.min(oldSize, (first + count) * bs) - from;
+                if (written + len > maxLength) throw new ProtocolException("delta longer than " + maxLength);
+                for (long done = 0; done < len; ) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, len - done));
+                    while (chunk.hasRemaining()) {
+                        if (old.read(chunk, from + done + chunk.position()) < 0) throw new EOFException("old copy ended");
+                    }
+                    write(target, written, buf, chunk.limit(), sum, digest);
+                    written += chunk.limit();
+                    done += chunk.limit();
+                }
+            } else if (op == DATA) {
+                int len = in.readInt();
+                if (len < 1 || len > MAX_DATA || written + len > maxLength) {
+                    throw new ProtocolException("bad data length " + len);
+                }
+                in.readFully(buf, 0, len);
+                write(target, written, buf, len, sum, digest);
+                written += len;
+            } else {
+                throw new ProtocolException("unknown delta instruction " + op);
+            }
+        }
+    }
+
+    private static void write(FileChannel target, long position, byte[] b, int len, Checksum sum,
+                              MessageDigest digest) throws IOException {
+        if (sum != null) sum.update(b, 0, len);
+        if (digest != null) digest.update(b, 0, len);
+        ByteBuffer bb = ByteBuffer.wrap(b, 0, len);
+        while (bb.hasRemaining()) target.write(bb, position + bb.position());
+    }
+
+    /** rsync's weak checksum: two 16-bit sums, the second weighting each byte by its distance from the end. */
+    static int weak(byte[] b, int off, int len) {
+        int a = 0;
+        int s = 0;
+        for (int i = 0; i < len; i++) {
+            int x = b[off + i] & 0xff;
+            a += x;
+            s += (len - i) * x;
+        }
+        return (a & 0xffff) | (s << 16);
+    }
+
+    private static int tag(int weak) {
+        return (weak ^ (weak >>> 16)) & 0xffff;
+    }
+
+    /** "delta: 100.0 MB file, 1.2 MB sent (83x less), 2.1 s" */
+    public static String report(long size, long sent, long nanos) {
+        double ratio = sent == 0 ? 0 : (double) size / sent;
+        return String.format("delta: %.1f MB file, %.1f MB sent (%.0fx less), %.1f s",
+                size / 1e6, sent / 1e6, ratio, nanos / 1e9);
+    }
+}
@@ -0,0 +1,43 @@
+package smtp.server;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * How a listener runs its connections.
+ *  - NIO: selector event loops, control port only
+ *  - PLATFORM: one platform thread per connection (blocking I/O)
+ *  - VIRTUAL: one virtual thread per connection (blocking I/O)
+ */
+enum ExecutionMode {
+    NIO, PLATFORM, VIRTUAL;
+
+    static ExecutionMode parse(String value, ExecutionMode fallback) {
+        if (value == null || value.isBlank()) return fallback;
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    /** Start one extra thread of this mode's kind (e.g. a connection's writer). */
+    Thread startThread(String name, Runnable task) {
+        return switch (this) {
+            case VIRTUAL -> Thread.ofVirtual().name(name).start(task);
+            case PLATFORM, NIO -> Thread.ofPlatform().name(name).daemon(true).start(task);
+        };
+    }
+
+    /** Thread-per-task executor for the blocking modes. */
+    ExecutorService newExecutor(String threadPrefix) {
+        ThreadFactory factory = switch (this) {
+            case VIRTUAL -> Thread.ofVirtual().name(threadPrefix + "-vt-", 0).factory();
+            case PLATFORM -> Thread.ofPlatform().name(threadPrefix + "-", 0).daemon(true).factory();
+            case NIO -> throw new IllegalStateException("NIO mode has no per-connection executor");
+        };
+        return Executors.newThreadPerTaskExecutor(factory);
+    }
+}
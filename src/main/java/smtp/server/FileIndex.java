@@ -0,0 +1,113 @@
+package smtp.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory index of the file store's names, so LIST and the server UI never scan or stat
+ * the directory. Name order comes from the map itself, size and time order from two sorted
+ * sets kept alongside. FileStore updates it under its own lock; readers need none.
+ */
+final class FileIndex {
+
+    enum Sort { NAME, SIZE, TIME }
+
+    /** One page of a query, and how many entries matched in all. */
+    static final class Page {
+        final int total;
+        final List<FileStore.Entry> entries;
+
+        Page(int total, List<FileStore.Entry> entries) {
+            this.total = total;
+            this.entries = entries;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, FileStore.Entry> byName = new ConcurrentSkipListMap<>();
+    // names are unique, so ties on size or time are broken by name
+    private final ConcurrentSkipListSet<FileStore.Entry> bySize = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong((FileStore.Entry e) -> e.size).thenComparing(e -> e.name));
+    private final ConcurrentSkipListSet<FileStore.Entry> byTime = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong((FileStore.Entry e) -> e.modified).thenComparing(e -> e.name));
+
+    FileStore.Entry get(String name) {
+        return byName.get(name);
+    }
+
+    /** Add or replace the entry of its name; returns the replaced one or null. */
+    FileStore.Entry put(FileStore.Entry e) {
+        FileStore.Entry old = byName.put(e.name, e);
+        if (old != null) {
+            bySize.remove(old);
+            byTime.remove(old);
+        }
+        bySize.add(e);
+        byTime.add(e);
+        return old;
+    }
+
+    FileStore.Entry remove(String name) {
+        FileStore.Entry old = byName.remove(name);
+        if (old != null) {
+            bySize.remove(old);
+            byTime.remove(old);
+        }
+        return old;
+    }
+
+    int size() {
+        return byName.size();
+    }
+
+    /** All entries in name order (a live view). */
+    Collection<FileStore.Entry> all() {
+        return byName.values();
+    }
+
+    /**
+     * Up to limit entries whose name starts with prefix, in name order, starting after the name
+     * `after` ("" = from the first). Keyset paging: names added or removed meanwhile never
+     * shift the next page, and no entries before the cursor are visited.
+     */
+    List<FileStore.Entry> after(String prefix, String after, int limit) {
+        NavigableMap<String, FileStore.Entry> rest = after.compareTo(prefix) >= 0
+                ? byName.tailMap(after, false) : byName.tailMap(prefix, true);
+        List<FileStore.Entry> page = new ArrayList<>(Math.min(limit, 256));
+        for (FileStore.Entry e : rest.values()) {
+            if (!e.name.startsWith(prefix) || page.size() == limit) break; // names with the prefix are contiguous
+            page.add(e);
+        }
+        return page;
+    }
+
+    /**
+     * Entries whose name starts with prefix ("" = all) in the given order, skipping offset
+     * of them and returning at most limit.
+     */
+    Page query(String prefix, Sort sort, boolean descending, int offset, int limit) {
+        Iterable<FileStore.Entry> order;
+        switch (sort) {
+            case SIZE -> order = descending ? bySize.descendingSet() : bySize;
+            case TIME -> order = descending ? byTime.descendingSet() : byTime;
+            default -> {
+                // only the names under the prefix are visited
+                NavigableMap<String, FileStore.Entry> range = prefix.isEmpty() ? byName
+                        : byName.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+                order = (descending ? range.descendingMap() : range).values();
+            }
+        }
+        int total = 0;
+        List<FileStore.Entry> page = new ArrayList<>(Math.min(limit, 256));
+        for (FileStore.Entry e : order) {
+            if (!e.name.startsWith(prefix)) continue;
+            if (total >= offset && page.size() < limit) page.add(e);
+            total++;
+        }
+        return new Page(total, page);
+    }
+}
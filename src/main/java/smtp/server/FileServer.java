@@ -1,119 +1,343 @@
 package smtp.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Server chính: khởi động 2 service:
- *  - control/chat service trên port CONTROL_PORT (kết nối bền, dùng ServerWorker)
+ *  - control/chat service trên port CONTROL_PORT (kết nối bền, non-blocking:
+ *    vài ControlEventLoop dùng chung cho mọi client, mỗi client là một ServerWorker)
  *  - file transfer service trên port FILE_PORT (kết nối tạm, dùng FileTransferWorker)
  *
- * Quản lý danh sách clients và định tuyến tin nhắn riêng.
+ * Execution mode của từng listener chọn qua system properties (xem ServerConfig):
+ * -Dsmtp.control.mode=nio|platform|virtual, -Dsmtp.file.mode=platform|virtual.
+ *
+ * Quản lý danh sách clients (ClientRegistry, tra cứu theo tên) và định tuyến tin nhắn riêng.
  */
 public class FileServer {
 
     public static final int FILE_PORT = 5001;
     public static final int CONTROL_PORT = 6000;
-    private final List<ServerWorker> clients = Collections.synchronizedList(new ArrayList<>());
-    private FileServerUI ui;
+    private final ClientRegistry clients = new ClientRegistry();
+    private final FileStore store = FileStore.open();
+    private final Bandwidth bandwidth = new Bandwidth();
+    // roster changes, their version number and the snapshots sent on SYNC are serialized here
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private long rosterVersion;
+    private int legacyClients;
+    private final LatencyStats pmLatency = new LatencyStats("PM routing", ServerConfig.PM_STATS_INTERVAL);
+    private final ServerView ui;
+
+    private volatile boolean running;
+    private volatile ServerSocketChannel controlChannel;
+    private volatile ServerSocketChannel fileChannel;
+    private volatile ControlEventLoop[] controlLoops;
+    private volatile ConnectionDispatcher controlDispatcher;
+    private volatile ConnectionDispatcher fileDispatcher;
+    private ScheduledExecutorService statsTimer;
 
-    public FileServer(FileServerUI ui) {
+    public FileServer(ServerView ui) {
         this.ui = ui;
+        // the UI's file list follows the store's index instead of rescanning the directory
+        store.setListener(new FileStore.Listener() {
+            @Override
+            public void added(FileStore.Entry entry) {
+                ui.fileAdded(entry.name);
+            }
+
+            @Override
+            public void removed(String name) {
+                ui.fileRemoved(name);
+            }
+        });
     }
 
     public void start() {
+        running = true;
+        if (ServerConfig.QUEUE_STATS_SECONDS > 0) {
+            statsTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "queue-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            statsTimer.scheduleAtFixedRate(this::reportOutboundQueues,
+                    ServerConfig.QUEUE_STATS_SECONDS, ServerConfig.QUEUE_STATS_SECONDS, TimeUnit.SECONDS);
+        }
         // start control/chat server
-        new Thread(this::startControlServer).start();
+        new Thread(this::startControlServer, "control-acceptor").start();
         // start file transfer server
-        new Thread(this::startFileServer).start();
+        new Thread(this::startFileServer, "file-acceptor").start();
+    }
+
+    /**
+     * Stop accepting, close control connections and give running file transfers
+     * ServerConfig.SHUTDOWN_GRACE_MILLIS to finish.
+     */
+    public void stop() {
+        if (!running) return;
+        running = false;
+        closeQuietly(controlChannel);
+        closeQuietly(fileChannel);
+        store.stopWatching();
+        if (statsTimer != null) statsTimer.shutdownNow();
+        if (controlLoops != null) {
+            for (ControlEventLoop loop : controlLoops) loop.shutdown();
+        }
+        if (controlDispatcher != null) controlDispatcher.shutdown(0);
+        if (fileDispatcher != null) fileDispatcher.shutdown(ServerConfig.SHUTDOWN_GRACE_MILLIS);
+        ui.log("Server stopped");
     }
 
     private void startControlServer() {
-        try (ServerSocket ss = new ServerSocket(CONTROL_PORT)) {
-            ui.log("Control server listening on port " + CONTROL_PORT);
-            while (true) {
-                Socket s = ss.accept();
-                ServerWorker w = new ServerWorker(s, this);
-                w.start();
+        ExecutionMode mode = ServerConfig.CONTROL_MODE;
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            controlChannel = ssc;
+            ssc.bind(new InetSocketAddress(CONTROL_PORT), 1024);
+            if (mode == ExecutionMode.NIO) {
+                acceptNio(ssc);
+            } else {
+                controlDispatcher = new ConnectionDispatcher(mode, "control", ServerConfig.CONTROL_MAX_CONNECTIONS);
+                ui.log("Control server listening on port " + CONTROL_PORT + " (" + mode + " threads)");
+                while (running) {
+                    SocketChannel ch = ssc.accept();
+                    ch.socket().setTcpNoDelay(true);
+                    controlDispatcher.dispatch(ch, new BlockingControlConnection(ch, mode, this));
+                }
             }
+        } catch (AsynchronousCloseException e) {
+            // stop() closed the listener
         } catch (IOException e) {
             ui.log("Control server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptNio(ServerSocketChannel ssc) throws IOException {
+        ControlEventLoop[] loops = new ControlEventLoop[ServerConfig.CONTROL_LOOPS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ControlEventLoop(this);
+            loops[i].start("control-loop-" + i);
+        }
+        controlLoops = loops;
+        ui.log("Control server listening on port " + CONTROL_PORT + " (" + loops.length + " event loops)");
+
+        int next = 0;
+        while (running) {
+            SocketChannel ch = ssc.accept();
+            ch.socket().setTcpNoDelay(true);
+            loops[next].register(ch);
+            next = (next + 1) % loops.length;
         }
     }
 
     private void startFileServer() {
-        try (ServerSocket ss = new ServerSocket(FILE_PORT)) {
-            ui.log("File server listening on port " + FILE_PORT);
-            while (true) {
-                Socket s = ss.accept();
-                FileTransferWorker ftw = new FileTransferWorker(s, this);
-                ftw.start();
+        // the store is opened here, not on the EDT: it may hash files and replay the manifest
+        try {
+            store.load(ui::log);
+        } catch (IOException e) {
+            ui.log("Cannot open file store: " + e.getMessage() + "; file server not started");
+            return;
+        }
+        ui.refreshFileList();
+        if (!running) return; // stopped while loading
+        // pick up files copied into server_files by hand
+        store.startWatching(ui::log);
+        ExecutionMode mode = ServerConfig.FILE_MODE;
+        fileDispatcher = new ConnectionDispatcher(mode, "file", ServerConfig.FILE_MAX_CONNECTIONS);
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            fileChannel = ssc;
+            ssc.bind(new InetSocketAddress(FILE_PORT));
+            ui.log("File server listening on port " + FILE_PORT + " (" + mode + " threads)");
+            while (running) {
+                SocketChannel ch = ssc.accept();
+                fileDispatcher.dispatch(ch, new FileTransferWorker(ch, this));
             }
+        } catch (AsynchronousCloseException e) {
+            // stop() closed the listener
         } catch (IOException e) {
             ui.log("File server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    private static void closeQuietly(ServerSocketChannel ch) {
+        if (ch == null) return;
+        try { ch.close(); } catch (IOException ignored) {}
+    }
+
     // client lifecycle
     public void addClient(ServerWorker w) {
-        clients.add(w);
-        ui.log("Client joined: " + w.getClientName());
-        broadcastClientList();
+        String name = w.getClientName();
+        presenceLock.lock();
+        try {
+            boolean joined = clients.register(w);
+            if (!w.wantsPresenceDeltas()) legacyClients++;
+            if (joined) {
+                rosterVersion++;
+                publishPresence(true, name, w);
+                // queued for the EDT under the lock, so the UI sees joins and leaves in roster order
+                ui.clientJoined(name);
+            }
+            // binary clients start in delta mode; others are legacy until they ask for SYNC
+            if (w.wantsPresenceDeltas()) w.sendRoster(rosterVersion, clients.names());
+            else w.sendPresence(legacyRoster());
+        } finally {
+            presenceLock.unlock();
+        }
+        ui.log("Client joined: " + name);
     }
 
     public void removeClient(ServerWorker w) {
-        clients.remove(w);
-        ui.log("Client left: " + w.getClientName());
-        broadcastClientList();
+        String name = w.getClientName();
+        presenceLock.lock();
+        try {
+            boolean left = clients.unregister(w);
+            if (!w.wantsPresenceDeltas()) legacyClients--;
+            if (left) {
+                rosterVersion++;
+                publishPresence(false, name, null);
+                ui.clientLeft(name);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+        ui.log("Client left: " + name);
     }
 
-    // send client list to all clients (format CLIENTS|name1,name2,...)
-    public void broadcastClientList() {
-        StringBuilder sb = new StringBuilder("CLIENTS|");
-        synchronized (clients) {
-            for (ServerWorker w : clients) {
-                sb.append(w.getClientName()).append(",");
+    /**
+     * SYNC command: switch the client to delta mode and send it a versioned snapshot
+     * (ROSTER|version|name1,name2,...). Also used by clients that detect a version gap.
+     */
+    void syncPresence(ServerWorker w) {
+        presenceLock.lock();
+        try {
+            if (!w.wantsPresenceDeltas()) {
+                w.setPresenceDeltas(true);
+                legacyClients--;
             }
+            w.sendRoster(rosterVersion, clients.names());
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    /** The client's queue dropped roster frames (COALESCE overflow): send it a fresh full list. */
+    void resyncPresence(ServerWorker w) {
+        presenceLock.lock();
+        try {
+            if (w.wantsPresenceDeltas()) syncPresence(w);
+            else w.sendPresence(legacyRoster());
+        } finally {
+            presenceLock.unlock();
         }
-        String payload = sb.toString();
-        synchronized (clients) {
-            for (ServerWorker w : clients) {
-                w.send(payload);
+    }
+
+    /**
+     * Tell everyone (except skip) about one roster change: delta-mode clients get
+     * JOIN|version|name or LEAVE|version|name (or the binary JOIN/LEAVE frame), legacy
+     * clients the full CLIENTS| list. Each payload is encoded once. Caller holds presenceLock.
+     */
+    private void publishPresence(boolean join, String name, ServerWorker skip) {
+        ByteBuffer frame = FrameCodec.encode(join ? FrameCodec.JOIN : FrameCodec.LEAVE, rosterVersion, name);
+        ByteBuffer delta = null;
+        ByteBuffer legacy = null;
+        try {
+            delta = UtfCodec.encode((join ? "JOIN|" : "LEAVE|") + rosterVersion + "|" + name);
+        } catch (UTFDataFormatException e) {
+            ui.log("Client name too long to broadcast to writeUTF clients: " + name);
+        }
+        int legacyOthers = legacyClients - (skip != null && !skip.wantsPresenceDeltas() ? 1 : 0);
+        if (legacyOthers > 0) legacy = legacyRoster();
+
+        for (ServerWorker[] group : clients.groups()) {
+            for (ServerWorker w : group) {
+                if (w == skip) continue;
+                if (w.wantsPresenceDeltas()) w.sendPresence(delta, frame);
+                else if (legacy != null) w.sendPresence(legacy);
             }
         }
-        // update UI
-        List<String> names = new ArrayList<>();
-        synchronized (clients) {
-            for (ServerWorker w : clients) names.add(w.getClientName());
+    }
+
+    // full client list for legacy clients (format CLIENTS|name1,name2,...)
+    private ByteBuffer legacyRoster() {
+        StringBuilder sb = new StringBuilder("CLIENTS|");
+        for (String name : clients.names()) {
+            sb.append(name).append(",");
+        }
+        try {
+            return UtfCodec.encode(sb.toString());
+        } catch (UTFDataFormatException e) {
+            ui.log("Client list too long to send");
+            return ByteBuffer.allocate(0);
         }
-        ui.updateClientList(names);
     }
 
-    // send private message from -> to
+    // send private message from -> to (every connection using that name)
     public void sendPrivate(String from, String to, String message) {
-        synchronized (clients) {
-            for (ServerWorker w : clients) {
-                if (w.getClientName().equals(to)) {
-                    w.send("PM|" + from + "|" + message);
-                    ui.log("PM from " + from + " to " + to + ": " + message);
-                    return;
-                }
+        long start = System.nanoTime();
+        ServerWorker[] targets = clients.lookup(to);
+        if (targets.length == 0) {
+            ui.log("PM target not found: " + to);
+            return;
+        }
+        for (ServerWorker w : targets) {
+            w.sendPrivate(from, message);
+        }
+        String report = pmLatency.record(System.nanoTime() - start);
+        ui.log("PM from " + from + " to " + to + ": " + message);
+        if (report != null) ui.log(report);
+    }
+
+    /**
+     * Log the clients whose outbound queue got deep or dropped frames since the last report
+     * (at most 10 lines, deepest first).
+     */
+    private void reportOutboundQueues() {
+        int threshold = Math.max(1, ServerConfig.OUTBOUND_MAX_FRAMES / 10);
+        List<ServerWorker> busy = new ArrayList<>();
+        for (ServerWorker[] group : clients.groups()) {
+            for (ServerWorker w : group) {
+                OutboundQueue q = w.outbound();
+                if (q.peakDepth() >= threshold || q.dropped() > 0) busy.add(w);
             }
         }
-        ui.log("PM target not found: " + to);
+        if (busy.isEmpty()) return;
+        busy.sort(Comparator.comparingInt((ServerWorker w) -> w.outbound().peakDepth()).reversed());
+        for (int i = 0; i < Math.min(10, busy.size()); i++) {
+            ServerWorker w = busy.get(i);
+            ui.log("Outbound queue " + w.getClientName() + ": " + w.outbound().stats());
+        }
+        if (busy.size() > 10) ui.log("... and " + (busy.size() - 10) + " more busy outbound queues");
     }
 
     // called by file transfer worker to update file list UI
     public void notifyFileUploaded(String filename) {
-        ui.log("File uploaded: " + filename);
-        ui.refreshFileList(); // UI will scan storage dir
+        ui.log("File uploaded: " + filename); // the store's listener updates the file list
+    }
+
+    FileStore store() {
+        return store;
+    }
+
+    Bandwidth bandwidth() {
+        return bandwidth;
     }
 
-    public FileServerUI getUi() {
+    public ServerView getUi() {
         return ui;
     }
 }
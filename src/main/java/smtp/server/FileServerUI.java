@@ -2,27 +2,38 @@ package smtp.server;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.File;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.io.IOException;
 
 /**
- * Server UI: Log, Clients list, Files list, Delete button.
+ * Server UI: Log, Clients list, Files list, Delete button, bandwidth limits of the file port
+ * (applied to running transfers at once).
  */
-public class FileServerUI extends JFrame {
+public class FileServerUI extends JFrame implements ServerView {
 
     private final JTextArea logArea = new JTextArea();
     private final DefaultListModel<String> clientModel = new DefaultListModel<>();
     private final DefaultListModel<String> fileModel = new DefaultListModel<>();
 
     private JList<String> fileListUI;
+    private JList<String> clientListUI;
     private JButton deleteBtn;
 
+    // bandwidth limits in KB/s, 0 = unlimited
+    private final JTextField globalDownField = new JTextField("0", 6);
+    private final JTextField globalUpField = new JTextField("0", 6);
+    private final JTextField clientDownField = new JTextField("0", 6);
+    private final JTextField clientUpField = new JTextField("0", 6);
+
     private FileServer server;
 
     public void setServer(FileServer server) {
         this.server = server;
+        refreshFileList();
+        Bandwidth b = server.bandwidth();
+        globalDownField.setText(String.valueOf(b.global(Bandwidth.Direction.DOWN).rate() / 1024));
+        globalUpField.setText(String.valueOf(b.global(Bandwidth.Direction.UP).rate() / 1024));
+        clientDownField.setText(String.valueOf(b.clientDefault(Bandwidth.Direction.DOWN) / 1024));
+        clientUpField.setText(String.valueOf(b.clientDefault(Bandwidth.Direction.UP) / 1024));
     }
 
     public FileServerUI() {
@@ -33,7 +44,27 @@ public class FileServerUI extends JFrame {
 
     private void initUI() {
         setSize(900, 600);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            private boolean closing;
+
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                if (closing) return;
+                closing = true;
+                // let running transfers finish before the JVM exits; stop() may wait for them
+                // for seconds, so not on the EDT: the window keeps painting meanwhile
+                log("Stopping server...");
+                setTitle("Server UI - stopping");
+                new Thread(() -> {
+                    if (server != null) server.stop();
+                    SwingUtilities.invokeLater(() -> {
+                        dispose();
+                        System.exit(0);
+                    });
+                }, "server-stop").start();
+            }
+        });
         setLayout(new BorderLayout());
 
         // LEFT = LOG
@@ -44,7 +75,7 @@ public class FileServerUI extends JFrame {
         JPanel right = new JPanel(new BorderLayout());
 
         // --- Clients ---
-        JList<String> clientListUI = new JList<>(clientModel);
+        clientListUI = new JList<>(clientModel);
         clientListUI.setBorder(BorderFactory.createTitledBorder("Clients"));
 
         // --- Files ---
@@ -67,6 +98,7 @@ public class FileServerUI extends JFrame {
         );
         rightSplit.setDividerLocation(250);
         right.add(rightSplit, BorderLayout.CENTER);
+        right.add(bandwidthPanel(), BorderLayout.SOUTH);
 
         JSplitPane mainSplit = new JSplitPane(
                 JSplitPane.HORIZONTAL_SPLIT,
@@ -78,39 +110,154 @@ public class FileServerUI extends JFrame {
         add(mainSplit, BorderLayout.CENTER);
     }
 
+    private JPanel bandwidthPanel() {
+        JPanel grid = new JPanel(new GridLayout(3, 3, 4, 2));
+        grid.add(new JLabel("KB/s (0 = no limit)"));
+        grid.add(new JLabel("Download"));
+        grid.add(new JLabel("Upload"));
+        grid.add(new JLabel("All clients"));
+        grid.add(globalDownField);
+        grid.add(globalUpField);
+        grid.add(new JLabel("Each client"));
+        grid.add(clientDownField);
+        grid.add(clientUpField);
+
+        JButton applyBtn = new JButton("Apply");
+        applyBtn.addActionListener(e -> applyBandwidth());
+        JButton clientBtn = new JButton("Limit Selected Client");
+        clientBtn.addActionListener(e -> limitSelectedClient());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(clientBtn);
+        buttons.add(applyBtn);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createTitledBorder("Bandwidth"));
+        panel.add(grid, BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    private void applyBandwidth() {
+        if (server == null) return;
+        try {
+            long gd = kbPerSecond(globalDownField), gu = kbPerSecond(globalUpField);
+            long cd = kbPerSecond(clientDownField), cu = kbPerSecond(clientUpField);
+            server.bandwidth().setGlobal(gd, gu);
+            server.bandwidth().setClientDefault(cd, cu);
+            log("Bandwidth: all clients " + describe(gd, gu) + ", each client " + describe(cd, cu));
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Limits must be whole numbers of KB/s (0 = no limit)");
+        }
+    }
+
+    /** Own limits for the selected client; an empty answer puts it back on the defaults */
+    private void limitSelectedClient() {
+        String name = clientListUI.getSelectedValue();
+        if (name == null || server == null) {
+            JOptionPane.showMessageDialog(this, "Please select a client!");
+            return;
+        }
+        Bandwidth.Client c = server.bandwidth().client(name);
+        String current = c.custom ? c.down.rate() / 1024 + " " + c.up.rate() / 1024 : "";
+        String answer = JOptionPane.showInputDialog(this,
+                "Download and upload KB/s for " + name + " (e.g. \"512 128\", empty = defaults):", current);
+        if (answer == null) return;
+        if (answer.isBlank()) {
+            server.bandwidth().clearClient(name);
+            log("Bandwidth: " + name + " back to the defaults");
+            return;
+        }
+        String[] v = answer.trim().split("\\s+");
+        try {
+            long down = Long.parseLong(v[0]) * 1024;
+            long up = v.length > 1 ? Long.parseLong(v[1]) * 1024 : down;
+            if (down < 0 || up < 0) throw new NumberFormatException();
+            server.bandwidth().setClient(name, down, up);
+            log("Bandwidth: " + name + " " + describe(down, up));
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Limits must be whole numbers of KB/s (0 = no limit)");
+        }
+    }
+
+    private static long kbPerSecond(JTextField field) {
+        long kb = Long.parseLong(field.getText().trim());
+        if (kb < 0) throw new NumberFormatException();
+        return kb * 1024;
+    }
+
+    private static String describe(long down, long up) {
+        return "down " + (down == 0 ? "unlimited" : down / 1024 + " KB/s")
+                + ", up " + (up == 0 ? "unlimited" : up / 1024 + " KB/s");
+    }
+
     /** Log messages */
+    @Override
     public void log(String s) {
         SwingUtilities.invokeLater(() -> {
             logArea.append(s + "\n");
         });
     }
 
-    /** Update client list on UI */
-    public void updateClientList(List<String> clients) {
+    /** A client name came online: insert it in sorted position */
+    @Override
+    public void clientJoined(String name) {
+        SwingUtilities.invokeLater(() -> {
+            int i = sortedIndex(clientModel, name);
+            if (i < 0) clientModel.add(-i - 1, name);
+        });
+    }
+
+    /** The last connection using this name went away */
+    @Override
+    public void clientLeft(String name) {
         SwingUtilities.invokeLater(() -> {
-            clientModel.clear();
-            for (String c : clients) clientModel.addElement(c);
+            int i = sortedIndex(clientModel, name);
+            if (i >= 0) clientModel.remove(i);
         });
     }
 
-    /** Refresh file list from server_files directory */
+    /** A file name was added to the store (or its content replaced): insert it in sorted position */
+    @Override
+    public void fileAdded(String name) {
+        SwingUtilities.invokeLater(() -> {
+            int i = sortedIndex(fileModel, name);
+            if (i < 0) fileModel.add(-i - 1, name);
+        });
+    }
+
+    /** A file name was removed from the store */
+    @Override
+    public void fileRemoved(String name) {
+        SwingUtilities.invokeLater(() -> {
+            int i = sortedIndex(fileModel, name);
+            if (i >= 0) fileModel.remove(i);
+        });
+    }
+
+    /** Binary search in a sorted list model; same contract as Collections.binarySearch. */
+    static int sortedIndex(DefaultListModel<String> model, String key) {
+        int lo = 0, hi = model.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = model.get(mid).compareTo(key);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    /** Reload the whole file list from the server's file store; later changes arrive one by one */
+    @Override
     public void refreshFileList() {
         SwingUtilities.invokeLater(() -> {
             fileModel.clear();
-            File dir = new File("server_files");
-            if (!dir.exists()) dir.mkdirs();
-
-            File[] files = dir.listFiles();
-            if (files != null) {
-                List<String> names = Arrays.stream(files)
-                        .map(File::getName)
-                        .collect(Collectors.toList());
-                for (String n : names) fileModel.addElement(n);
-            }
+            if (server == null) return;
+            for (FileStore.Entry e : server.store().list()) fileModel.addElement(e.name);
         });
     }
 
-    /** Delete selected file from server_files */
+    /** Delete selected file from the file store */
     private void deleteSelectedFile() {
         String selected = fileListUI.getSelectedValue();
         if (selected == null) {
@@ -127,16 +274,14 @@ public class FileServerUI extends JFrame {
 
         if (confirm != JOptionPane.YES_OPTION) return;
 
-        File f = new File("server_files/" + selected);
-        if (f.exists()) {
-            if (f.delete()) {
+        try {
+            if (server.store().delete(selected)) {
                 log("Deleted file: " + selected);
-                refreshFileList();
             } else {
-                JOptionPane.showMessageDialog(this, "Cannot delete file!");
+                JOptionPane.showMessageDialog(this, "File does not exist!");
             }
-        } else {
-            JOptionPane.showMessageDialog(this, "File does not exist!");
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Cannot delete file!");
         }
     }
 }
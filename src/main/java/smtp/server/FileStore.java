@@ -0,0 +1,606 @@
+package smtp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The server_files directory, content-addressed: every distinct content is stored once, as
+ * server_files/.blobs/ab/cd/&lt;sha-256&gt;, and server_files/.manifest maps the names clients see
+ * to those digests. The same file uploaded under several names or by several clients takes
+ * the space of one, and a blob is deleted once no name points to it.
+ * Uploads in progress live in server_files/.partial, named after the file, its size and its
+ * checksum, so a client that reconnects with the same file finds the bytes it already sent.
+ * Partial files untouched for -Dsmtp.transfer.partialMaxAgeHours (default 24) are abandoned
+ * uploads and deleted, at startup and then hourly.
+ * A partial file becomes a blob only once its size and checksum match; it is synced to disk and
+ * renamed into place, and the manifest line naming it is synced before the client hears "OK".
+ * Blobs never change once written, so readers need no lock: a download holds the blob it opened
+ * and keeps streaming that version even if the name is replaced or deleted meanwhile. Blobs
+ * that could not be deleted because a reader still had them open (Windows) are swept at startup.
+ * Each name also keeps the CRC32C of its content, computed while the upload streamed in, so a
+ * download can hand out both checksums without reading the file again.
+ * The names are also kept in memory (FileIndex), which LIST and the server UI read; a listener
+ * hears about every change. Plain files found at the top level (stored before the blob store
+ * existed, or copied in by hand while the server runs) are imported, the latter once a
+ * WatchService has seen them unchanged for a second.
+ */
+final class FileStore {
+
+    static final String STORAGE = "server_files";
+    private static final String PARTIAL_DIR = ".partial";
+    private static final String BLOB_DIR = ".blobs";
+    private static final String MANIFEST = ".manifest";
+    private static final long QUIET_MILLIS = 1000;
+    private static final long PARTIAL_MAX_AGE_MILLIS =
+            TimeUnit.HOURS.toMillis(Long.getLong("smtp.transfer.partialMaxAgeHours", 24));
+    private static final long PARTIAL_SWEEP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Path root;
+    private final Path partialDir;
+    private final Path blobDir;
+    private final Path manifestFile;
+    // written under this lock, read without it
+    private final FileIndex index = new FileIndex();
+    // how many names use each digest, and the CRC32C of each; guarded by this
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final Map<String, Long> crcs = new HashMap<>();
+    // lines appended to .manifest since it was last rewritten; guarded by this
+    private int journalLines;
+    private volatile Listener listener;
+    private volatile Thread watcher;
+    // partial files with an upload writing to them right now
+    private final Set<Path> busy = ConcurrentHashMap.newKeySet();
+    // how many connections write chunks into each .chunks file; guarded by itself, and a
+    // .chunks file is only claimed in busy under that lock too
+    private final Map<Path, Integer> chunkWriters = new HashMap<>();
+
+    /** One name of the store and the content it points to. */
+    static final class Entry {
+        final String name;
+        final String digest;
+        final long size;
+        final long modified;
+        final long crc32c;
+
+        Entry(String name, String digest, long size, long modified, long crc32c) {
+            this.name = name;
+            this.digest = digest;
+            this.size = size;
+            this.modified = modified;
+            this.crc32c = crc32c;
+        }
+    }
+
+    /** An entry and its content opened for reading: the checksums always describe those bytes. */
+    static final class Snapshot {
+        final Entry entry;
+        final FileChannel channel;
+
+        Snapshot(Entry entry, FileChannel channel) {
+            this.entry = entry;
+            this.channel = channel;
+        }
+    }
+
+    /** Told about every name added, replaced or removed, whatever the cause. Called under the store lock. */
+    interface Listener {
+        void added(Entry entry);
+
+        void removed(String name);
+    }
+
+    FileStore(Path root) {
+        this.root = root;
+        this.partialDir = root.resolve(PARTIAL_DIR);
+        this.blobDir = root.resolve(BLOB_DIR);
+        this.manifestFile = root.resolve(MANIFEST);
+    }
+
+    /** The server's store, not loaded yet: see {@link #load}. */
+    static FileStore open() {
+        return new FileStore(Paths.get(STORAGE));
+    }
+
+    /**
+     * Read the manifest, clean up what a crash or an old version left behind and import loose
+     * files, logging progress. Files that are new or predate checksums are hashed, so on a large
+     * store this takes a while: call it once, off the EDT, before serving anything.
+     */
+    void load(Consumer<String> log) throws IOException {
+        long start = System.currentTimeMillis();
+        log.accept("Opening file store " + root.toAbsolutePath() + "...");
+        Files.createDirectories(partialDir);
+        Files.createDirectories(blobDir);
+        synchronized (this) {
+            loadManifest();
+            sweepBlobs();
+        }
+        log.accept("File store: " + index.size() + " file(s) in the manifest");
+        int swept = sweepPartials(start);
+        if (swept > 0) log.accept("Deleted " + swept + " abandoned partial upload(s)");
+        int imported = importLooseFiles();
+        if (imported > 0) log.accept("Imported " + imported + " file(s) copied into " + root);
+        log.accept("File store ready in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Files shown to clients and the server UI, by name. */
+    List<Entry> list() {
+        return new ArrayList<>(index.all());
+    }
+
+    /** A page of the files whose name starts with prefix; see FileIndex#query. */
+    FileIndex.Page query(String prefix, FileIndex.Sort sort, boolean descending, int offset, int limit) {
+        return index.query(prefix, sort, descending, offset, limit);
+    }
+
+    /** Up to limit files after a name cursor; see FileIndex#after. */
+    List<Entry> after(String prefix, String after, int limit) {
+        return index.after(prefix, after, limit);
+    }
+
+    /** The entry of a client-supplied name, or null if there is no such file. */
+    Entry find(String name) {
+        return isValidName(name) ? index.get(baseName(name)) : null;
+    }
+
+    /** Open the content of a client-supplied name for reading, or null if there is no such file. */
+    FileChannel openForRead(String name) throws IOException {
+        Snapshot snap = snapshot(name);
+        return snap == null ? null : snap.channel;
+    }
+
+    /**
+     * The current entry of a client-supplied name with its content opened, or null if there is no
+     * such file. Takes no lock: if the name was replaced between looking it up and opening its blob,
+     * the blob may be gone already, and the new entry is tried. The channel stays readable whatever
+     * happens to the name afterwards.
+     */
+    Snapshot snapshot(String name) throws IOException {
+        Entry e = find(name);
+        while (e != null) {
+            try {
+                return new Snapshot(e, FileChannel.open(blob(e.digest), StandardOpenOption.READ));
+            } catch (NoSuchFileException gone) {
+                Entry now = find(name);
+                if (now == e) return null; // blob lost outside the store
+                e = now;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Point name at content the store already has. Returns false (and changes nothing)
+     * if no blob with this digest and size exists.
+     */
+    synchronized boolean linkExisting(String name, long size, String digest) throws IOException {
+        if (!isValidDigest(digest)) return false;
+        Path blob = blob(digest);
+        Long crc = crcs.get(digest); // null for a blob left behind by a crash: upload it again
+        if (crc == null || !Files.isRegularFile(blob) || Files.size(blob) != size) return false;
+        bind(baseName(name), digest, size, crc);
+        return true;
+    }
+
+    /**
+     * Partial file for an upload of this name, size and CRC32C (checksum -1 = not sent).
+     * Returns null if another connection is uploading the same file right now;
+     * otherwise the caller must {@link #release} it when done.
+     */
+    Path acquirePartial(String name, long size, long checksum) {
+        Path part = partialDir.resolve(partialName(name, size, checksum) + ".part");
+        return busy.add(part) ? part : null;
+    }
+
+    /**
+     * Staging file for rebuilding an upload from a delta (UPLOAD_DELTA). Named apart from the
+     * .part of UPLOAD_RESUME, so a delta attempt never touches the bytes a resumable upload kept.
+     * Null if a delta of the same file is being applied right now; otherwise {@link #release} it.
+     */
+    Path acquireDelta(String name, long size, long checksum) {
+        Path part = partialDir.resolve(partialName(name, size, checksum) + ".delta");
+        return busy.add(part) ? part : null;
+    }
+
+    /**
+     * Partial file of a chunked upload, for writing chunks into it. Any number of connections
+     * write their chunks at the chunks' offsets at once; while one does, the file can be neither
+     * committed nor swept. Null if it is being committed or swept right now; otherwise the caller
+     * must {@link #releaseChunkWriter} it when done.
+     */
+    Path acquireChunkWriter(String name, long size, long checksum) {
+        Path part = chunkedPartial(name, size, checksum);
+        synchronized (chunkWriters) {
+            if (busy.contains(part)) return null;
+            chunkWriters.merge(part, 1, Integer::sum);
+        }
+        return part;
+    }
+
+    void releaseChunkWriter(Path part) {
+        synchronized (chunkWriters) {
+            chunkWriters.computeIfPresent(part, (p, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /** Exclusive use of a chunked upload's partial file for committing it; null if busy or being written. */
+    Path acquireChunked(String name, long size, long checksum) {
+        Path part = chunkedPartial(name, size, checksum);
+        return claim(part) ? part : null;
+    }
+
+    private Path chunkedPartial(String name, long size, long checksum) {
+        return partialDir.resolve(partialName(name, size, checksum) + ".chunks");
+    }
+
+    /** Take a partial file for exclusive use, unless an upload has it or chunks are being written to it. */
+    private boolean claim(Path part) {
+        synchronized (chunkWriters) {
+            return !chunkWriters.containsKey(part) && busy.add(part);
+        }
+    }
+
+    private static String partialName(String name, long size, long checksum) {
+        String tag = checksum < 0 ? "nocrc" : Long.toHexString(checksum);
+        return baseName(name) + "." + size + "." + tag;
+    }
+
+    void release(Path part) {
+        busy.remove(part);
+    }
+
+    /**
+     * Store a complete partial file whose SHA-256 is digest and CRC32C crc32c under name, replacing
+     * the name's older content. If the store already has this content the partial file is just deleted.
+     */
+    void commit(Path part, String name, String digest, long crc32c) throws IOException {
+        // the slow part, done before taking the lock: other commits and deletes go on meanwhile
+        try (FileChannel fc = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            fc.force(false);
+        }
+        install(part, baseName(name), digest, Files.size(part), crc32c);
+    }
+
+    private synchronized void install(Path part, String name, String digest, long size, long crc32c)
+            throws IOException {
+        Path blob = blob(digest);
+        if (Files.exists(blob)) {
+            Files.delete(part);
+        } else {
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.move(part, blob, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part, blob);
+            }
+            syncDirectory(blob.getParent());
+        }
+        bind(name, digest, size, crc32c);
+    }
+
+    /** Remove a name; its content goes too unless another name uses it. */
+    synchronized boolean delete(String name) throws IOException {
+        if (!isValidName(name)) return false;
+        Entry old = index.remove(baseName(name));
+        if (old == null) return false;
+        record(old.name, null);
+        unref(old.digest);
+        Listener l = listener;
+        if (l != null) l.removed(old.name);
+        return true;
+    }
+
+    private void bind(String name, String digest, long size, long crc32c) throws IOException {
+        Entry e = new Entry(name, digest, size, System.currentTimeMillis(), crc32c);
+        Entry old = index.put(e);
+        boolean sameContent = old != null && old.digest.equals(digest);
+        if (!sameContent) refs.merge(digest, 1, Integer::sum);
+        crcs.put(digest, crc32c);
+        record(name, e);
+        if (old != null && !sameContent) unref(old.digest);
+        Listener l = listener;
+        if (l != null) l.added(e);
+    }
+
+    private void unref(String digest) throws IOException {
+        if (refs.merge(digest, -1, Integer::sum) > 0) return;
+        refs.remove(digest);
+        crcs.remove(digest);
+        try {
+            Files.deleteIfExists(blob(digest));
+        } catch (IOException stillOpen) {
+            // a download still reads it and the OS refuses; sweepBlobs() removes it next start
+        }
+    }
+
+    /** Delete blobs no name points to: left by a crash, or by unref() failing to delete an open one. */
+    private void sweepBlobs() throws IOException {
+        try (Stream<Path> files = Files.walk(blobDir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String digest = p.getFileName().toString();
+                if (Files.isRegularFile(p) && !refs.containsKey(digest)) Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /**
+     * Delete partial files not written to for PARTIAL_MAX_AGE_MILLIS: uploads given up on,
+     * including the variants left when a client changed its file between attempts. Returns how
+     * many. A file in use (an upload resuming it, chunks being written to it, a commit) is
+     * skipped, and each file is claimed while deleting so no upload takes it meanwhile.
+     */
+    int sweepPartials(long now) throws IOException {
+        int deleted = 0;
+        try (Stream<Path> files = Files.list(partialDir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                if (!claim(p)) continue;
+                try {
+                    if (now - Files.getLastModifiedTime(p).toMillis() >= PARTIAL_MAX_AGE_MILLIS
+                            && Files.deleteIfExists(p)) {
+                        deleted++;
+                    }
+                } catch (IOException gone) {
+                    // removed or committed meanwhile
+                } finally {
+                    busy.remove(p);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Make a rename or a new file in dir survive a crash. Not every platform can open a directory
+     * (Windows cannot); there the rename is as durable as the OS makes it.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch (IOException unsupported) {
+            // best effort
+        }
+    }
+
+    // .blobs/ab/cd/abcd...: two levels of 256 subdirectories keep every directory small
+    private Path blob(String digest) {
+        return blobDir.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+    }
+
+    private void loadManifest() throws IOException {
+        if (!Files.exists(manifestFile)) return;
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(manifestFile)) {
+            p.load(in); // a name recorded several times keeps its last line
+        }
+        for (String name : p.stringPropertyNames()) {
+            // "digest size modified crc32c"; older manifests lack the crc or hold only the digest,
+            // deleted names nothing
+            String[] v = p.getProperty(name).split(" ");
+            String digest = v[0];
+            if (!isValidName(name) || !isValidDigest(digest)) continue;
+            Path blob = blob(digest);
+            if (!Files.isRegularFile(blob)) continue;
+            long size;
+            long modified;
+            Long crc;
+            try {
+                size = v.length >= 3 ? Long.parseLong(v[1]) : Files.size(blob);
+                modified = v.length >= 3 ? Long.parseLong(v[2]) : Files.getLastModifiedTime(blob).toMillis();
+                crc = v.length >= 4 ? Long.valueOf(Long.parseLong(v[3], 16)) : crcs.get(digest);
+            } catch (NumberFormatException e) {
+                continue; // line cut short by a crash
+            }
+            if (crc == null) {
+                // stored before checksums were kept: read once, now, rather than on every download
+                try (FileChannel fc = FileChannel.open(blob, StandardOpenOption.READ)) {
+                    crc = ChannelIO.crc32c(fc, fc.size());
+                }
+            }
+            index.put(new Entry(name, digest, size, modified, crc));
+            refs.merge(digest, 1, Integer::sum);
+            crcs.put(digest, crc);
+        }
+        saveManifest(); // drop the lines that were replaced
+    }
+
+    /**
+     * Append one change to the manifest (entry null = name deleted), so a change costs one
+     * line rather than a rewrite; the file is compacted once it is mostly stale lines.
+     */
+    private void record(String name, Entry e) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(name, e == null ? "" : manifestValue(e));
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        p.store(line, null);
+        // store() always starts with a "#date" comment line
+        String text = line.toString(StandardCharsets.ISO_8859_1);
+        ByteBuffer bytes = StandardCharsets.ISO_8859_1.encode(text.substring(text.indexOf('\n') + 1));
+        try (FileChannel fc = FileChannel.open(manifestFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            while (bytes.hasRemaining()) fc.write(bytes);
+            fc.force(false); // the client is told "OK" after this: the name must survive a crash
+        }
+        if (++journalLines > index.size() + 1000) saveManifest();
+    }
+
+    // written to a temp file and renamed, so a crash leaves the old or the new manifest
+    private void saveManifest() throws IOException {
+        Properties p = new Properties();
+        for (Entry e : index.all()) p.setProperty(e.name, manifestValue(e));
+        Path tmp = root.resolve(MANIFEST + ".tmp");
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = Channels.newOutputStream(fc);
+            p.store(out, "file name = SHA-256 of its content in " + BLOB_DIR + ", size, time added, CRC32C");
+            fc.force(false);
+        }
+        try {
+            Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(root);
+        journalLines = 0;
+    }
+
+    private static String manifestValue(Entry e) {
+        return e.digest + " " + e.size + " " + e.modified + " " + Long.toHexString(e.crc32c);
+    }
+
+    private int importLooseFiles() throws IOException {
+        File[] files = root.toFile().listFiles();
+        if (files == null) return 0;
+        int imported = 0;
+        for (File f : files) {
+            if (isVisible(f)) {
+                importFile(f.toPath());
+                imported++;
+            }
+        }
+        return imported;
+    }
+
+    // hashed outside the lock; commit() takes it
+    private void importFile(Path file) throws IOException {
+        MessageDigest sha = ChannelIO.sha256();
+        CRC32C crc = new CRC32C();
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChannelIO.update(crc, sha, fc, fc.size());
+        }
+        commit(file, file.getFileName().toString(), HexFormat.of().formatHex(sha.digest()), crc.getValue());
+    }
+
+    /** Import files copied into server_files from now on; problems go to log. */
+    void startWatching(Consumer<String> log) {
+        WatchService ws;
+        try {
+            ws = root.getFileSystem().newWatchService();
+            root.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            log.accept("Not watching " + root + ": " + e.getMessage());
+            return;
+        }
+        Thread t = new Thread(() -> watch(ws, log), "file-store-watch");
+        t.setDaemon(true);
+        watcher = t;
+        t.start();
+    }
+
+    void stopWatching() {
+        Thread t = watcher;
+        if (t != null) t.interrupt();
+    }
+
+    private void watch(WatchService ws, Consumer<String> log) {
+        // files seen changing, and when they last did: a copy in progress keeps sending events
+        Map<Path, Long> pending = new HashMap<>();
+        long lastSweep = System.currentTimeMillis();
+        try (ws) {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = ws.poll(QUIET_MILLIS / 4, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    for (WatchEvent<?> ev : key.pollEvents()) {
+                        if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            File[] files = root.toFile().listFiles();
+                            if (files != null) {
+                                for (File f : files) if (isVisible(f)) pending.put(f.toPath(), now);
+                            }
+                        } else {
+                            Path p = root.resolve((Path) ev.context());
+                            if (isVisible(p.toFile())) pending.put(p, now);
+                        }
+                    }
+                    if (!key.reset()) return; // server_files itself is gone
+                }
+                pending.entrySet().removeIf(e -> {
+                    if (now - e.getValue() < QUIET_MILLIS) return false;
+                    Path p = e.getKey();
+                    try {
+                        if (isVisible(p.toFile())) {
+                            importFile(p);
+                            log.accept("Imported " + p.getFileName() + " into the file store");
+                        }
+                    } catch (IOException ex) {
+                        log.accept("Cannot import " + p.getFileName() + ": " + ex.getMessage());
+                    }
+                    return true;
+                });
+                if (now - lastSweep >= PARTIAL_SWEEP_MILLIS) {
+                    lastSweep = now;
+                    try {
+                        int n = sweepPartials(now);
+                        if (n > 0) log.accept("Deleted " + n + " abandoned partial upload(s)");
+                    } catch (IOException ex) {
+                        log.accept("Cannot sweep partial uploads: " + ex.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopWatching()
+        } catch (IOException e) {
+            log.accept("File store watch stopped: " + e.getMessage());
+        }
+    }
+
+    /** Plain files at the top level of server_files (not the store's own hidden entries). */
+    static boolean isVisible(File f) {
+        return f.isFile() && !f.getName().startsWith(".");
+    }
+
+    /** Names clients may use: a plain file name, not hidden (which would reach into .partial). */
+    static boolean isValidName(String name) {
+        String base = new File(name).getName();
+        return !base.isEmpty() && !base.startsWith(".");
+    }
+
+    /** A lowercase hex SHA-256, the only form used in blob paths. */
+    static boolean isValidDigest(String digest) {
+        if (digest == null || digest.length() != 64) return false;
+        for (int i = 0; i < digest.length(); i++) {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    private static String baseName(String name) {
+        if (!isValidName(name)) throw new IllegalArgumentException("bad file name: " + name);
+        return new File(name).getName();
+    }
+}
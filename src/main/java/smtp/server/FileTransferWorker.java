@@ -1,116 +1,616 @@
 package smtp.server;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 
 /**
  * Handles one file-transfer connection.
  * Protocol:
  *  - client sends clientName (UTF)
- *  - client sends command (UTF): UPLOAD | LIST | DOWNLOAD
+ *  - client sends command (UTF): UPLOAD | UPLOAD_RESUME | UPLOAD_RESUME_Z | UPLOAD_CHUNKS
+ *    | UPLOAD_COMMIT | UPLOAD_HASH | UPLOAD_DELTA | LIST | LIST_QUERY | LIST_PAGE | DOWNLOAD | DOWNLOAD_RANGE
+ *    | DOWNLOAD_RANGE_Z | DOWNLOAD_VERIFIED | DOWNLOAD_CHUNKS | CHECKSUM, and the connection closes after it;
+ *    or SESSION to keep the connection for many commands:
+ *  - For SESSION:
+ *      - server replies "OK"
+ *      - then any number of requests: sendInt(requestId), sendUTF(command), command arguments;
+ *        the server answers them in order, each answer being writeInt(requestId) followed by
+ *        exactly what the command answers on its own connection. Requests may be pipelined.
+ *      - sendUTF("END") as a command, or closing the connection, ends the session; so does
+ *        an unknown command, a failed transfer, or no request for SESSION_IDLE_MILLIS
  *  - For UPLOAD:
  *      - sendUTF(filename), sendLong(filesize), then raw bytes
- *      - server replies writeUTF("OK") or error
+ *      - server replies writeUTF("OK") or error; the file is only visible once complete. There is
+ *        no checksum to check against: prefer UPLOAD_RESUME
+ *  - For UPLOAD_RESUME (resumable):
+ *      - sendUTF(filename), sendLong(filesize), sendLong(CRC32C of the whole file)
+ *      - server replies "OK" + long offset (bytes it already has from an earlier attempt)
+ *        or "ERR_BUSY" (same file is being uploaded on another connection)
+ *      - client sends bytes [offset, filesize)
+ *      - server replies "OK", or "ERR_CHECKSUM" (partial data discarded, start over)
+ *      - if the connection drops, the bytes received so far are kept for the next attempt
+ *  - For UPLOAD_RESUME_Z (same, optionally compressed; see Compression):
+ *      - sendUTF(filename), sendLong(filesize), sendLong(CRC32C), sendUTF(codec the client wants
+ *        to send with, or "identity")
+ *      - server replies "OK" + long offset + UTF codec accepted ("identity" if unknown)
+ *      - client sends bytes [offset, filesize): raw for identity, else compressed in frames
+ *  - For UPLOAD_CHUNKS (parallel upload, several connections at once):
+ *      - sendUTF(filename), sendLong(filesize), sendLong(CRC32C of the whole file)
+ *      - server replies "OK" (or "ERR_BAD_NAME", or "ERR_BUSY" while the file is being committed)
+ *      - then any number of: sendLong(offset), sendLong(length), bytes -> server replies "OK"
+ *        once the chunk is written; sendLong(-1) ends the chunk list -> server replies "OK"
+ *        once this connection no longer holds the file, so a commit sent afterwards sees it free
+ *  - For UPLOAD_COMMIT (after all chunks of an UPLOAD_CHUNKS upload):
+ *      - sendUTF(filename), sendLong(filesize), sendLong(CRC32C)
+ *      - server replies "OK", "ERR_SIZE" (chunks missing), "ERR_CHECKSUM" (partial data
+ *        discarded) or "ERR_BUSY" (being committed, or chunks still being written)
+ *  - For UPLOAD_HASH (before uploading, to skip content the server already stores):
+ *      - sendUTF(filename), sendLong(filesize), sendUTF(SHA-256 of the file, hex)
+ *      - server replies "OK" (name now points to the stored content: done), "MISSING"
+ *        (upload it), "ERR_BAD_HASH" or "ERR_BAD_NAME"
+ *  - For UPLOAD_DELTA (a new version of a file the server has under the same name; see DeltaSync):
+ *      - sendUTF(filename), sendLong(filesize), sendLong(CRC32C of the new version)
+ *      - server replies "MISSING" (no such file: upload it whole), "ERR_BUSY", "ERR_BAD_NAME",
+ *        or "OK" followed by the block signatures of its copy
+ *      - client sends the delta instructions, ending with END
+ *      - server replies "OK", or "ERR_CHECKSUM" (rebuilt file differs: upload it whole)
  *  - For LIST:
  *      - server writes int count, then for each file writeUTF(name), writeLong(size)
+ *  - For LIST_QUERY (one page of the list):
+ *      - sendUTF(name prefix, "" = all), sendUTF("NAME" | "SIZE" | "TIME"), sendBoolean(descending),
+ *        sendInt(offset), sendInt(limit, at most MAX_PAGE)
+ *      - server replies "ERR_BAD_QUERY", or "OK" + int total matching + int count, then for each
+ *        file writeUTF(name), writeLong(size), writeLong(time added, epoch millis)
+ *  - For LIST_PAGE (name order, paged with a cursor):
+ *      - sendUTF(name prefix, "" = all), sendUTF(cursor: last name of the previous page, "" = first page),
+ *        sendInt(page size, at most MAX_PAGE)
+ *      - server replies "OK", then the page in frames as it goes: writeInt(n) followed by n times
+ *        writeUTF(name), writeLong(size), writeLong(time added); a frame with n = 0 ends the page
+ *        and is followed by writeBoolean(more pages after this one)
  *  - For DOWNLOAD:
  *      - client sendsUTF(filename)
  *      - server responds "NOT_FOUND" or "OK" + file length + bytes
+ *  - For DOWNLOAD_RANGE:
+ *      - client sendsUTF(filename), sendLong(offset), sendLong(length, -1 = to the end)
+ *      - server responds "NOT_FOUND", "ERR_RANGE", or "OK" + file length + range length + bytes
+ *  - For DOWNLOAD_RANGE_Z (same, optionally compressed):
+ *      - client sendsUTF(filename), sendLong(offset), sendLong(length), sendUTF(codecs it accepts,
+ *        comma separated, in order of preference)
+ *      - server responds like DOWNLOAD_RANGE, with UTF codec after the range length; the bytes
+ *        are raw for "identity" (data that does not compress is always sent so), else framed
+ *  - For DOWNLOAD_VERIFIED (same as DOWNLOAD_RANGE_Z, with the checksums to verify against):
+ *      - server responds like DOWNLOAD_RANGE_Z, with writeLong(CRC32C) and writeUTF(SHA-256, hex)
+ *        of the whole file after the codec; both were computed when the file was stored
+ *  - For DOWNLOAD_CHUNKS (parallel download, several connections at once):
+ *      - client sendsUTF(filename); server responds "NOT_FOUND" or "OK" + file length
+ *      - then any number of: sendLong(offset), sendLong(length) -> server responds "OK" + bytes
+ *        or "ERR_RANGE" (and closes); sendLong(-1) ends the chunk list
+ *  - For CHECKSUM (e.g. to verify a file fetched with DOWNLOAD_CHUNKS):
+ *      - client sendsUTF(filename); server responds "NOT_FOUND" or "OK" + file length
+ *        + writeLong(CRC32C) + writeUTF(SHA-256, hex)
+ * Uploads with a bad name (empty, hidden) get "ERR_BAD_NAME".
+ * Uploaded content is stored once per SHA-256, whatever its name (see FileStore).
+ * File bytes go through FileChannel transfers and direct buffers (see ChannelIO), not a heap buffer;
+ * only compressed bodies pass through the heap (see Compression).
+ * Every byte in and out is subject to the server's bandwidth limits (see Bandwidth).
  */
-public class FileTransferWorker extends Thread {
+public class FileTransferWorker implements Runnable {
 
-    private final Socket socket;
+    static final int MAX_PAGE = 1000;
+    // LIST_PAGE entries per flushed frame: the client shows the first ones while the rest are sent
+    private static final int FRAME_ENTRIES = 100;
+    // a session waiting longer than this for its next request is closed, so parked sessions do not
+    // hold a thread and a connection slot forever (the client pool drops idle ones after 30 s)
+    static final long SESSION_IDLE_MILLIS = Long.getLong("smtp.transfer.sessionIdleSeconds", 60) * 1000;
+    private static final ScheduledExecutorService IDLE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "file-session-idle");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final SocketChannel socket;
+    // the socket, throttled: everything is read and written through it
+    private final ThrottledChannel channel;
     private final FileServer server;
-    private static final int BUFFER = 16 * 1024;
-    private static final String STORAGE = "server_files";
+    private final FileStore store;
 
-    public FileTransferWorker(Socket socket, FileServer server) {
-        this.socket = socket;
+    public FileTransferWorker(SocketChannel channel, FileServer server) {
+        this.socket = channel;
+        this.channel = new ThrottledChannel(channel, server.bandwidth());
         this.server = server;
-        File dir = new File(STORAGE);
-        if (!dir.exists()) dir.mkdirs();
+        this.store = server.store();
     }
 
     @Override
     public void run() {
-        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+        ChannelIO.HeaderInput in = new ChannelIO.HeaderInput(channel);
+        try (DataInputStream dis = new DataInputStream(in);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
 
             String clientName = dis.readUTF(); // client identifies itself
-            server.getUi().log("File-connection from: " + clientName + " @ " + socket.getInetAddress());
+            channel.setClient(clientName);
+            server.getUi().log("File-connection from: " + clientName + " @ " + socket.socket().getInetAddress());
 
             String cmd = dis.readUTF();
-            switch (cmd) {
-                case "UPLOAD":
-                    handleUpload(dis, dos);
-                    break;
-                case "LIST":
-                    handleList(dos);
-                    break;
-                case "DOWNLOAD":
-                    handleDownload(dis, dos);
-                    break;
-                default:
-                    dos.writeUTF("ERR_UNKNOWN_COMMAND");
-                    dos.flush();
+            if (cmd.equals("SESSION")) {
+                runSession(in, dis, dos);
+            } else if (!handle(cmd, in, dis, dos)) {
+                reply(dos, "ERR_UNKNOWN_COMMAND");
             }
         } catch (Exception e) {
             server.getUi().log("FileWorker error: " + e.getMessage());
         } finally {
-            try { socket.close(); } catch (Exception ignored) {}
+            try { channel.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    /** Serve requests until the client ends the session. */
+    private void runSession(ChannelIO.HeaderInput in, DataInputStream dis, DataOutputStream dos) throws IOException {
+        reply(dos, "OK");
+        while (true) {
+            int id;
+            // a blocking channel read has no timeout: close the socket if nothing comes in time
+            ScheduledFuture<?> idle = IDLE_TIMER.schedule(() -> {
+                try { socket.close(); } catch (IOException ignored) {}
+            }, SESSION_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                id = dis.readInt();
+            } catch (EOFException e) {
+                return; // client closed an idle session
+            } catch (ClosedChannelException e) {
+                server.getUi().log("Closing idle file session");
+                return;
+            } finally {
+                idle.cancel(false);
+            }
+            String cmd = dis.readUTF();
+            if (cmd.equals("END")) return;
+            dos.writeInt(id); // sent together with the command's first reply
+            if (!handle(cmd, in, dis, dos)) {
+                // its arguments cannot be skipped, so the rest of the stream is unreadable
+                reply(dos, "ERR_UNKNOWN_COMMAND");
+                return;
+            }
+        }
+    }
+
+    /** Run one command; false if it is unknown. */
+    private boolean handle(String cmd, ChannelIO.HeaderInput in, DataInputStream dis, DataOutputStream dos)
+            throws IOException {
+        switch (cmd) {
+            case "UPLOAD" -> handleUpload(in, dis, dos);
+            case "UPLOAD_RESUME" -> handleUploadResume(in, dis, dos, false);
+            case "UPLOAD_RESUME_Z" -> handleUploadResume(in, dis, dos, true);
+            case "UPLOAD_CHUNKS" -> handleUploadChunks(in, dis, dos);
+            case "UPLOAD_COMMIT" -> handleUploadCommit(dis, dos);
+            case "UPLOAD_HASH" -> handleUploadHash(dis, dos);
+            case "UPLOAD_DELTA" -> handleUploadDelta(dis, dos);
+            case "LIST" -> handleList(dos);
+            case "LIST_QUERY" -> handleListQuery(dis, dos);
+            case "LIST_PAGE" -> handleListPage(dis, dos);
+            case "DOWNLOAD" -> handleDownload(dis, dos);
+            case "DOWNLOAD_RANGE" -> handleDownloadRange(dis, dos, false, false);
+            case "DOWNLOAD_RANGE_Z" -> handleDownloadRange(dis, dos, true, false);
+            case "DOWNLOAD_VERIFIED" -> handleDownloadRange(dis, dos, true, true);
+            case "DOWNLOAD_CHUNKS" -> handleDownloadChunks(dis, dos);
+            case "CHECKSUM" -> handleChecksum(dis, dos);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void handleUpload(ChannelIO.HeaderInput in, DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filename = dis.readUTF();
+        long size = dis.readLong();
+        // the client sends the body without waiting for an answer: after refusing it, the rest
+        // of the stream is unreadable, so the connection (or session) ends here
+        if (!FileStore.isValidName(filename)) {
+            reply(dos, "ERR_BAD_NAME");
+            throw new ProtocolException("upload refused: bad name " + filename);
+        }
+        Path part = store.acquirePartial(filename, size, -1);
+        if (part == null) {
+            reply(dos, "ERR_BUSY");
+            throw new ProtocolException("upload refused: " + filename + " busy");
+        }
+        boolean committed = false;
+        try {
+            // checksummed while streaming: the digest names the stored content, both go with it
+            CRC32C crc = new CRC32C();
+            MessageDigest sha = ChannelIO.sha256();
+            try (FileChannel fc = FileChannel.open(part, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                in.transferTo(fc, 0, size, crc, sha); // EOFException if the client stops short
+            }
+            store.commit(part, filename, hex(sha), crc.getValue());
+            committed = true;
+        } finally {
+            // this command cannot resume, so an interrupted upload leaves nothing behind
+            if (!committed) Files.deleteIfExists(part);
+            store.release(part);
+        }
+        reply(dos, "OK");
+        server.notifyFileUploaded(new File(filename).getName());
+    }
+
+    private void handleUploadResume(ChannelIO.HeaderInput in, DataInputStream dis, DataOutputStream dos,
+                                    boolean negotiate) throws IOException {
+        String filename = dis.readUTF();
+        long size = dis.readLong();
+        long checksum = dis.readLong();
+        TransferCodec codec = negotiate ? Compression.get(dis.readUTF()) : null;
+        if (!FileStore.isValidName(filename)) {
+            reply(dos, "ERR_BAD_NAME");
+            return;
+        }
+        Path part = store.acquirePartial(filename, size, checksum);
+        if (part == null) {
+            reply(dos, "ERR_BUSY");
+            return;
+        }
+        try {
+            boolean match;
+            MessageDigest sha = ChannelIO.sha256();
+            try (FileChannel fc = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ)) {
+                if (fc.size() > size) fc.truncate(size);
+                long offset = fc.size();
+                dos.writeUTF("OK");
+                dos.writeLong(offset);
+                if (negotiate) dos.writeUTF(Compression.nameOf(codec)); // what the client may send
+                dos.flush();
+                if (offset > 0) server.getUi().log("Resuming upload of " + filename + " at byte " + offset);
+
+                CRC32C crc = new CRC32C();
+                ChannelIO.update(crc, sha, fc, offset); // bytes kept from the earlier attempt
+                if (codec == null) {
+                    in.transferTo(fc, offset, size - offset, crc, sha);
+                } else {
+                    long start = System.nanoTime();
+                    long wire = Compression.receive(dis, codec, fc, offset, size - offset, crc, sha);
+                    server.getUi().log("Received " + filename + " " + Compression.report(codec, size - offset, wire,
+                            System.nanoTime() - start));
+                }
+                match = crc.getValue() == checksum;
+            }
+            if (!match) {
+                Files.deleteIfExists(part);
+                reply(dos, "ERR_CHECKSUM");
+                server.getUi().log("Checksum mismatch, discarded upload of " + filename);
+                return;
+            }
+            store.commit(part, filename, hex(sha), checksum);
+        } finally {
+            store.release(part);
+        }
+        reply(dos, "OK");
+        server.notifyFileUploaded(new File(filename).getName());
+    }
+
+    private void handleUploadChunks(ChannelIO.HeaderInput in, DataInputStream dis, DataOutputStream dos)
+            throws IOException {
+        String filename = dis.readUTF();
+        long size = dis.readLong();
+        long checksum = dis.readLong();
+        if (!FileStore.isValidName(filename)) {
+            reply(dos, "ERR_BAD_NAME");
+            return;
+        }
+        Path part = store.acquireChunkWriter(filename, size, checksum);
+        if (part == null) {
+            reply(dos, "ERR_BUSY"); // being committed
+            return;
+        }
+        try (FileChannel fc = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            reply(dos, "OK");
+            while (true) {
+                long offset = dis.readLong();
+                if (offset < 0) break;
+                long length = dis.readLong();
+                if (offset > size || length < 0 || length > size - offset) {
+                    reply(dos, "ERR_RANGE");
+                    throw new ProtocolException("chunk out of range"); // its bytes may follow
+                }
+                // positional writes: other connections fill in the other chunks concurrently
+                in.transferTo(fc, offset, length);
+                reply(dos, "OK");
+            }
+        } finally {
+            store.releaseChunkWriter(part);
+        }
+        reply(dos, "OK");
+    }
+
+    private void handleUploadCommit(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filename = dis.readUTF();
+        long size = dis.readLong();
+        long checksum = dis.readLong();
+        if (!FileStore.isValidName(filename)) {
+            reply(dos, "ERR_BAD_NAME");
+            return;
+        }
+        Path part = store.acquireChunked(filename, size, checksum);
+        if (part == null) {
+            reply(dos, "ERR_BUSY");
+            return;
+        }
+        try {
+            if (!Files.isRegularFile(part) || Files.size(part) != size) {
+                reply(dos, "ERR_SIZE");
+                return;
+            }
+            // chunks arrived out of order over several connections: verify the assembled file
+            CRC32C crc = new CRC32C();
+            MessageDigest sha = ChannelIO.sha256();
+            try (FileChannel fc = FileChannel.open(part, StandardOpenOption.READ)) {
+                ChannelIO.update(crc, sha, fc, size);
+            }
+            if (crc.getValue() != checksum) {
+                Files.deleteIfExists(part);
+                reply(dos, "ERR_CHECKSUM");
+                server.getUi().log("Checksum mismatch, discarded chunked upload of " + filename);
+                return;
+            }
+            store.commit(part, filename, hex(sha), checksum);
+        } finally {
+            store.release(part);
+        }
+        reply(dos, "OK");
+        server.notifyFileUploaded(new File(filename).getName());
+    }
+
+    private void handleUploadHash(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filename = dis.readUTF();
+        long size = dis.readLong();
+        String digest = dis.readUTF().toLowerCase(Locale.ROOT);
+        if (!FileStore.isValidName(filename)) {
+            reply(dos, "ERR_BAD_NAME");
+            return;
+        }
+        if (!FileStore.isValidDigest(digest)) {
+            reply(dos, "ERR_BAD_HASH");
+            return;
         }
+        if (!store.linkExisting(filename, size, digest)) {
+            reply(dos, "MISSING");
+            return;
+        }
+        reply(dos, "OK");
+        server.notifyFileUploaded(new File(filename).getName() + " (content already stored)");
     }
 
-    private void handleUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+    private void handleUploadDelta(DataInputStream dis, DataOutputStream dos) throws IOException {
         String filename = dis.readUTF();
         long size = dis.readLong();
-        File out = new File(STORAGE, new File(filename).getName());
-        try (FileOutputStream fos = new FileOutputStream(out)) {
-            byte[] buf = new byte[BUFFER];
-            long remaining = size;
-            while (remaining > 0) {
-                int toRead = (int) Math.min(buf.length, remaining);
-                int r = dis.read(buf, 0, toRead);
-                if (r == -1) break;
-                fos.write(buf, 0, r);
-                remaining -= r;
-            }
-            fos.flush();
+        long checksum = dis.readLong();
+        if (!FileStore.isValidName(filename)) {
+            reply(dos, "ERR_BAD_NAME");
+            return;
+        }
+        // the version the signatures describe stays readable whatever happens to the name meanwhile
+        FileStore.Snapshot old = store.snapshot(filename);
+        if (old == null) {
+            reply(dos, "MISSING");
+            return;
+        }
+        try (FileChannel base = old.channel) {
+            Path part = store.acquireDelta(filename, size, checksum);
+            if (part == null) {
+                reply(dos, "ERR_BUSY");
+                return;
+            }
+            boolean committed = false;
+            try {
+                dos.writeUTF("OK");
+                DeltaSync.sendSignatures(base, old.entry.size, dos);
+                CRC32C crc = new CRC32C();
+                MessageDigest sha = ChannelIO.sha256();
+                long written;
+                try (FileChannel fc = FileChannel.open(part, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    written = DeltaSync.applyDelta(dis, base, old.entry.size, fc, size, crc, sha);
+                }
+                if (written != size || crc.getValue() != checksum) {
+                    reply(dos, "ERR_CHECKSUM");
+                    server.getUi().log("Delta upload of " + filename + " did not rebuild the file, discarded");
+                    return;
+                }
+                store.commit(part, filename, hex(sha), checksum);
+                committed = true;
+            } finally {
+                // rebuilt from instructions, not resumable: a failed attempt leaves nothing behind
+                if (!committed) Files.deleteIfExists(part);
+                store.release(part);
+            }
         }
+        reply(dos, "OK");
+        server.notifyFileUploaded(new File(filename).getName() + " (delta)");
+    }
+
+    private void handleList(DataOutputStream dos) throws IOException {
+        List<FileStore.Entry> files = store.list();
+        dos.writeInt(files.size());
+        for (FileStore.Entry f : files) {
+            dos.writeUTF(f.name);
+            dos.writeLong(f.size);
+        }
+        dos.flush();
+    }
+
+    private void handleListQuery(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String prefix = dis.readUTF();
+        String sortName = dis.readUTF();
+        boolean descending = dis.readBoolean();
+        int offset = dis.readInt();
+        int limit = dis.readInt();
+        FileIndex.Sort sort;
+        try {
+            sort = FileIndex.Sort.valueOf(sortName);
+        } catch (IllegalArgumentException e) {
+            sort = null;
+        }
+        if (sort == null || offset < 0 || limit < 0) {
+            reply(dos, "ERR_BAD_QUERY");
+            return;
+        }
+        // served from memory: no directory scan, no stat per file
+        FileIndex.Page page = store.query(prefix, sort, descending, offset, Math.min(limit, MAX_PAGE));
         dos.writeUTF("OK");
+        dos.writeInt(page.total);
+        dos.writeInt(page.entries.size());
+        for (FileStore.Entry f : page.entries) {
+            dos.writeUTF(f.name);
+            dos.writeLong(f.size);
+            dos.writeLong(f.modified);
+        }
         dos.flush();
-        server.notifyFileUploaded(out.getName());
     }
 
-    private void handleList(DataOutputStream dos) throws IOException {
-        File dir = new File(STORAGE);
-        File[] files = dir.listFiles();
-        if (files == null) files = new File[0];
-        dos.writeInt(files.length);
-        for (File f : files) {
-            dos.writeUTF(f.getName());
-            dos.writeLong(f.length());
+    private void handleListPage(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String prefix = dis.readUTF();
+        String cursor = dis.readUTF();
+        int limit = Math.max(1, Math.min(dis.readInt(), MAX_PAGE));
+        // one extra entry tells whether another page follows
+        List<FileStore.Entry> page = store.after(prefix, cursor, limit + 1);
+        boolean more = page.size() > limit;
+        if (more) page = page.subList(0, limit);
+        dos.writeUTF("OK");
+        for (int from = 0; from < page.size(); from += FRAME_ENTRIES) {
+            List<FileStore.Entry> frame = page.subList(from, Math.min(from + FRAME_ENTRIES, page.size()));
+            dos.writeInt(frame.size());
+            for (FileStore.Entry f : frame) {
+                dos.writeUTF(f.name);
+                dos.writeLong(f.size);
+                dos.writeLong(f.modified);
+            }
+            dos.flush();
         }
+        dos.writeInt(0);
+        dos.writeBoolean(more);
         dos.flush();
     }
 
     private void handleDownload(DataInputStream dis, DataOutputStream dos) throws IOException {
         String filename = dis.readUTF();
-        File f = new File(STORAGE, filename);
-        if (!f.exists() || !f.isFile()) {
-            dos.writeUTF("NOT_FOUND");
+        FileChannel content = store.openForRead(filename);
+        if (content == null) {
+            reply(dos, "NOT_FOUND");
+            return;
+        }
+        try (FileChannel fc = content) {
+            long size = fc.size();
+            dos.writeUTF("OK");
+            dos.writeLong(size);
             dos.flush();
+            ChannelIO.sendFile(fc, 0, size, channel);
+        }
+    }
+
+    private void handleDownloadRange(DataInputStream dis, DataOutputStream dos, boolean negotiate,
+                                     boolean checksums) throws IOException {
+        String filename = dis.readUTF();
+        long offset = dis.readLong();
+        long length = dis.readLong();
+        String offered = negotiate ? dis.readUTF() : "";
+        FileStore.Snapshot snap = store.snapshot(filename);
+        if (snap == null) {
+            reply(dos, "NOT_FOUND");
             return;
         }
-        dos.writeUTF("OK");
-        dos.writeLong(f.length());
-        try (FileInputStream fis = new FileInputStream(f)) {
-            byte[] buf = new byte[BUFFER];
-            int r;
-            while ((r = fis.read(buf)) != -1) {
-                dos.write(buf, 0, r);
+        FileStore.Entry entry = snap.entry;
+        try (FileChannel fc = snap.channel) {
+            long size = fc.size();
+            if (length < 0) length = size - offset;
+            if (offset < 0 || offset > size || length < 0 || length > size - offset) {
+                reply(dos, "ERR_RANGE");
+                return;
+            }
+            // compress only what the client accepts and what is not compressed already
+            TransferCodec codec = Compression.choose(offered);
+            if (codec != null && !Compression.looksCompressible(fc, offset, length)) codec = null;
+            dos.writeUTF("OK");
+            dos.writeLong(size);
+            dos.writeLong(length);
+            if (negotiate) dos.writeUTF(Compression.nameOf(codec));
+            if (checksums) {
+                dos.writeLong(entry.crc32c);
+                dos.writeUTF(entry.digest);
+            }
+            dos.flush();
+            if (codec == null) {
+                ChannelIO.sendFile(fc, offset, length, channel);
+            } else {
+                long start = System.nanoTime();
+                long wire = Compression.send(fc, offset, length, codec, dos);
+                server.getUi().log("Sent " + filename + " " + Compression.report(codec, length, wire,
+                        System.nanoTime() - start));
             }
         }
+    }
+
+    private void handleDownloadChunks(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filename = dis.readUTF();
+        FileChannel content = store.openForRead(filename);
+        if (content == null) {
+            reply(dos, "NOT_FOUND");
+            return;
+        }
+        try (FileChannel fc = content) {
+            long size = fc.size();
+            dos.writeUTF("OK");
+            dos.writeLong(size);
+            dos.flush();
+            while (true) {
+                long offset = dis.readLong();
+                if (offset < 0) break;
+                long length = dis.readLong();
+                if (offset > size || length < 0 || length > size - offset) {
+                    reply(dos, "ERR_RANGE");
+                    throw new ProtocolException("chunk out of range");
+                }
+                reply(dos, "OK");
+                ChannelIO.sendFile(fc, offset, length, channel);
+            }
+        }
+    }
+
+    private void handleChecksum(DataInputStream dis, DataOutputStream dos) throws IOException {
+        FileStore.Entry entry = store.find(dis.readUTF());
+        if (entry == null) {
+            reply(dos, "NOT_FOUND");
+            return;
+        }
+        dos.writeUTF("OK");
+        dos.writeLong(entry.size);
+        dos.writeLong(entry.crc32c);
+        dos.writeUTF(entry.digest);
+        dos.flush();
+    }
+
+    private static String hex(MessageDigest sha) {
+        return HexFormat.of().formatHex(sha.digest());
+    }
+
+    private static void reply(DataOutputStream dos, String status) throws IOException {
+        dos.writeUTF(status);
         dos.flush();
     }
 }
@@ -0,0 +1,256 @@
+package smtp.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Binary framing for the control protocol, shared by server (ServerWorker) and client (MainFrame).
+ *
+ * Handshake: a binary client sends writeUTF({@link #HANDSHAKE}) first, which old servers would
+ * simply take as a display name and new servers as "switch to binary". Everything after it is
+ * frames:
+ * <pre>
+ *   frame  = type (1 byte) | length (varint) | payload (length bytes)
+ *   string = length (varint) | UTF-8 bytes
+ *   number = varint (unsigned LEB128)
+ * </pre>
+ * Payloads per type:
+ * <pre>
+ *   HELLO  c->s: version, name    s->c: version          (binary clients always get deltas)
+ *   PM     c->s: target, message  s->c: from, message
+ *   SYNC   c->s: -                                        (server answers with ROSTER)
+ *   QUIT   c->s: -
+ *   ROSTER s->c: version, count, name * count
+ *   JOIN / LEAVE s->c: version, name
+ * </pre>
+ * Clients that never send the handshake keep the writeUTF protocol described in ServerWorker.
+ */
+public final class FrameCodec {
+
+    /** First writeUTF of a binary client; NUL keeps it from colliding with a real display name. */
+    public static final String HANDSHAKE = "\u0000CTRL";
+    public static final int VERSION = 1;
+
+    public static final byte HELLO = 1;
+    public static final byte PM = 2;
+    public static final byte SYNC = 3;
+    public static final byte QUIT = 4;
+    public static final byte ROSTER = 5;
+    public static final byte JOIN = 6;
+    public static final byte LEAVE = 7;
+
+    /** Largest payload either side accepts. */
+    public static final int MAX_PAYLOAD = Integer.getInteger("smtp.control.maxFrame", 1 << 20);
+
+    private FrameCodec() {
+    }
+
+    /** A decoded frame; read its fields in order with the next* methods. */
+    public static final class Frame {
+        private final byte type;
+        private final ByteBuffer payload;
+
+        Frame(byte type, ByteBuffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        public String nextString() throws ProtocolException {
+            return readString(payload);
+        }
+
+        public long nextNumber() throws ProtocolException {
+            return readVarint(payload);
+        }
+    }
+
+    // ---------------------------------------------------------------- encoding
+
+    /** Encode a frame whose payload is a list of strings. Buffer is ready for reading. */
+    public static ByteBuffer encode(byte type, String... fields) {
+        int payload = 0;
+        for (String f : fields) payload += stringSize(f);
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(payload) + payload);
+        buf.put(type);
+        putVarint(buf, payload);
+        for (String f : fields) putString(buf, f);
+        return buf.flip();
+    }
+
+    /** version + name: server HELLO uses only the version (name == null); JOIN/LEAVE use both. */
+    public static ByteBuffer encode(byte type, long number, String name) {
+        int payload = varintSize(number) + (name != null ? stringSize(name) : 0);
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(payload) + payload);
+        buf.put(type);
+        putVarint(buf, payload);
+        putVarint(buf, number);
+        if (name != null) putString(buf, name);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encodeRoster(long version, Collection<String> names) {
+        int payload = varintSize(version) + varintSize(names.size());
+        for (String n : names) payload += stringSize(n);
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(payload) + payload);
+        buf.put(ROSTER);
+        putVarint(buf, payload);
+        putVarint(buf, version);
+        putVarint(buf, names.size());
+        for (String n : names) putString(buf, n);
+        return buf.flip();
+    }
+
+    /** Stream variant for clients; caller flushes. */
+    public static void write(DataOutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    // ---------------------------------------------------------------- decoding
+
+    /**
+     * Size of the whole frame starting at the buffer's position, or -1 if the header
+     * (type + length) has not fully arrived. Does not move the position.
+     */
+    static int frameSize(ByteBuffer buf) throws ProtocolException {
+        int pos = buf.position() + 1;
+        long len = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= buf.limit()) return -1;
+            if (shift > 28) throw new ProtocolException("bad frame length");
+            byte b = buf.get(pos++);
+            len |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (len > MAX_PAYLOAD) throw new ProtocolException("frame too large: " + len);
+        return (pos - buf.position()) + (int) len;
+    }
+
+    /**
+     * Decode one complete frame (see {@link #frameSize}) at the buffer's position. The payload
+     * is a slice of the buffer: consume it before the buffer is reused.
+     */
+    static Frame decode(ByteBuffer buf) throws ProtocolException {
+        byte type = buf.get();
+        int len = (int) readVarint(buf);
+        ByteBuffer payload = buf.slice(buf.position(), len);
+        buf.position(buf.position() + len);
+        return new Frame(type, payload);
+    }
+
+    /** Stream variant for clients: blocks until a whole frame has arrived. */
+    public static Frame read(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long len = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) throw new ProtocolException("bad frame length");
+            byte b = in.readByte();
+            len |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (len > MAX_PAYLOAD) throw new ProtocolException("frame too large: " + len);
+        byte[] payload = new byte[(int) len];
+        in.readFully(payload);
+        return new Frame(type, ByteBuffer.wrap(payload));
+    }
+
+    // ---------------------------------------------------------------- primitives
+
+    static long readVarint(ByteBuffer buf) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) throw new ProtocolException("truncated varint");
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    static String readString(ByteBuffer buf) throws ProtocolException {
+        long len = readVarint(buf);
+        if (len > buf.remaining()) throw new ProtocolException("truncated string");
+        int n = (int) len;
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+        } else {
+            byte[] tmp = new byte[n];
+            buf.get(buf.position(), tmp);
+            s = new String(tmp, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + n);
+        return s;
+    }
+
+    private static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /** Encoded size without building the byte[] first. */
+    private static int stringSize(String s) {
+        int utf8 = utf8Length(s);
+        return varintSize(utf8) + utf8;
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) n++; // unpaired: encoded as '?'
+            else n += 3;
+        }
+        return n;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        putVarint(buf, utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package smtp.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency counters (count / average / max), reported and reset in intervals.
+ */
+final class LatencyStats {
+
+    private final String label;
+    private final int reportEvery;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyStats(String label, int reportEvery) {
+        this.label = label;
+        this.reportEvery = reportEvery;
+    }
+
+    /**
+     * Record one sample.
+     * @return a summary line every reportEvery samples, otherwise null
+     */
+    String record(long nanos) {
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        count.increment();
+        if (reportEvery <= 0 || count.sum() < reportEvery) return null;
+        synchronized (this) {
+            // another thread may have just reported this interval
+            return count.sum() < reportEvery ? null : report();
+        }
+    }
+
+    /** Summary since the last report; resets the counters. */
+    synchronized String report() {
+        long n = count.sumThenReset();
+        if (n == 0) return null;
+        long total = totalNanos.sumThenReset();
+        long max = maxNanos.getThenReset();
+        return String.format("%s: %d samples, avg %.1f µs, max %.1f µs",
+                label, n, total / 1000.0 / n, max / 1000.0);
+    }
+}
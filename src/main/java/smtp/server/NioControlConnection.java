@@ -0,0 +1,225 @@
+package smtp.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking control connection owned by one {@link ControlEventLoop}.
+ * Reads writeUTF frames (or binary frames after the handshake, see {@link FrameCodec}) from
+ * the channel and hands them to its {@link ServerWorker};
+ * outgoing frames go through a bounded {@link OutboundQueue} that the loop drains at the
+ * end of each tick, batching everything queued so far into one gathering write.
+ *
+ * All methods except {@link #write(ByteBuffer, boolean)} and {@link #close()} run on the loop thread.
+ */
+final class NioControlConnection implements ControlConnection {
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ControlEventLoop loop;
+    private final ServerWorker worker;
+
+    // bytes of an incomplete frame left over from the last read; null for idle clients
+    private ByteBuffer partial;
+    // a binary frame bigger than the shared read buffer, read straight into its own buffer
+    private ByteBuffer largeFrame;
+    private boolean binary;
+
+    private final OutboundQueue outbound = OutboundQueue.fromConfig();
+    // frames taken off the queue but not completely written yet (socket buffer was full)
+    private ByteBuffer[] unsent;
+    private int unsentStart;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioControlConnection(SocketChannel channel, SelectionKey key, ControlEventLoop loop, FileServer server) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.worker = new ServerWorker(this, server);
+    }
+
+    @Override
+    public void write(ByteBuffer frame, boolean presence) {
+        if (closed.get()) return;
+        if (!outbound.offer(frame, presence)) {
+            worker.onSlowConsumer();
+            close();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inLoop()) loop.markDirty(this);
+            else loop.execute(() -> loop.markDirty(this));
+        }
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    @Override
+    public void close() {
+        if (closed.get()) return;
+        loop.execute(this::closeNow);
+    }
+
+    @Override
+    public void switchToBinary() {
+        binary = true; // called from onMessage, i.e. on the loop thread
+    }
+
+    void onReadable() {
+        if (largeFrame != null) {
+            readLargeFrame();
+            return;
+        }
+        ByteBuffer buf = loop.readBuffer();
+        buf.clear();
+        if (partial != null) {
+            buf.put(partial);
+            partial = null;
+        }
+        int n;
+        try {
+            n = channel.read(buf);
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        if (n == -1) {
+            closeNow();
+            return;
+        }
+        buf.flip();
+
+        try {
+            // the handshake may switch framing mid-buffer, so frameSize() checks the mode every time
+            int size;
+            while ((size = frameSize(buf)) >= 0 && buf.remaining() >= size) {
+                deliver(buf);
+                if (closed.get()) return;
+            }
+            if (buf.hasRemaining()) keepRemainder(buf, size);
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /** Bytes of the frame at the buffer's position, or -1 until its header has arrived. */
+    private int frameSize(ByteBuffer buf) throws ProtocolException {
+        if (binary) return FrameCodec.frameSize(buf);
+        if (buf.remaining() < 2) return -1;
+        return 2 + (buf.getShort(buf.position()) & 0xFFFF);
+    }
+
+    private void deliver(ByteBuffer buf) throws IOException {
+        if (binary) {
+            worker.onFrame(FrameCodec.decode(buf));
+        } else {
+            int len = buf.getShort() & 0xFFFF;
+            worker.onMessage(UtfCodec.decode(buf, len));
+        }
+    }
+
+    private void keepRemainder(ByteBuffer buf, int size) {
+        if (size > buf.capacity()) {
+            largeFrame = ByteBuffer.allocate(size);
+            largeFrame.put(buf);
+        } else {
+            partial = ByteBuffer.allocate(buf.remaining());
+            partial.put(buf).flip();
+        }
+    }
+
+    private void readLargeFrame() {
+        try {
+            if (channel.read(largeFrame) == -1) {
+                closeNow();
+                return;
+            }
+            if (largeFrame.hasRemaining()) return;
+            ByteBuffer frame = largeFrame.flip();
+            largeFrame = null;
+            deliver(frame);
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /** Write as much as the socket takes, one batch (gathering write) at a time. */
+    void flush() {
+        if (closed.get()) return;
+        try {
+            if (unsent != null) {
+                channel.write(unsent, unsentStart, unsent.length - unsentStart);
+                while (unsentStart < unsent.length && !unsent[unsentStart].hasRemaining()) unsentStart++;
+                if (unsentStart < unsent.length) {
+                    waitWritable();
+                    return;
+                }
+                unsent = null;
+            }
+
+            ByteBuffer[] batch = loop.gatherBuffers();
+            while (true) {
+                int n = 0;
+                long bytes = 0;
+                ByteBuffer frame;
+                while (n < batch.length && bytes < ServerConfig.CONTROL_BATCH_BYTES
+                        && (frame = outbound.poll()) != null) {
+                    batch[n++] = frame;
+                    bytes += frame.remaining();
+                }
+                if (n == 0) break;
+
+                channel.write(batch, 0, n);
+                int done = 0;
+                while (done < n && !batch[done].hasRemaining()) done++;
+                if (done < n) {
+                    // socket buffer full: keep the rest, wait for OP_WRITE with flushScheduled still set
+                    unsent = Arrays.copyOfRange(batch, done, n);
+                    unsentStart = 0;
+                    Arrays.fill(batch, 0, n, null);
+                    waitWritable();
+                    return;
+                }
+                Arrays.fill(batch, 0, n, null);
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            flushScheduled.set(false);
+            if (outbound.takeRosterStale()) worker.resyncPresence();
+            // a frame may have been queued after the last poll but before the flag was cleared
+            if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                loop.markDirty(this);
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private void waitWritable() {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void closeNow() {
+        if (!closed.compareAndSet(false, true)) return;
+        key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        outbound.close();
+        unsent = null;
+        partial = null;
+        largeFrame = null;
+        worker.onClosed();
+    }
+}
@@ -0,0 +1,230 @@
+package smtp.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one control client.
+ * Producers (any thread) never block; when the queue is full the {@link Overflow}
+ * policy decides what gives. One writer drains it.
+ */
+final class OutboundQueue {
+
+    enum Overflow {
+        /** discard the oldest queued frames until the new one fits */
+        DROP_OLDEST,
+        /** the client is too slow: close its connection */
+        DISCONNECT,
+        /** discard queued roster frames first and send one fresh snapshot once drained */
+        COALESCE;
+
+        static Overflow parse(String value, Overflow fallback) {
+            if (value == null || value.isBlank()) return fallback;
+            try {
+                return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return fallback;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final ByteBuffer frame;
+        final boolean presence;
+
+        Entry(ByteBuffer frame, boolean presence) {
+            this.frame = frame;
+            this.presence = presence;
+        }
+    }
+
+    private final int maxFrames;
+    private final int maxBytes;
+    private final Overflow policy;
+
+    // lock rather than synchronized: the blocking writer may be a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int bytes;
+    private boolean closed;
+    private boolean rosterStale;
+
+    // metrics
+    private int peakDepth;
+    private long dropped;
+
+    OutboundQueue(int maxFrames, int maxBytes, Overflow policy) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    static OutboundQueue fromConfig() {
+        return new OutboundQueue(ServerConfig.OUTBOUND_MAX_FRAMES, ServerConfig.OUTBOUND_MAX_BYTES,
+                ServerConfig.OUTBOUND_OVERFLOW);
+    }
+
+    /**
+     * @param presence true for roster frames (CLIENTS/ROSTER/JOIN/LEAVE), which COALESCE may replace
+     * @return false if the frame was rejected and the connection should be closed
+     */
+    boolean offer(ByteBuffer frame, boolean presence) {
+        int size = frame.remaining();
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (!fits(size)) {
+                switch (policy) {
+                    case DISCONNECT -> {
+                        dropped++;
+                        return false;
+                    }
+                    case COALESCE -> {
+                        dropPresence();
+                        if (presence) {
+                            // the snapshot sent after draining supersedes this frame
+                            rosterStale = true;
+                            dropped++;
+                            return true;
+                        }
+                        dropOldestUntil(size);
+                    }
+                    case DROP_OLDEST -> dropOldestUntil(size);
+                }
+            }
+            entries.addLast(new Entry(frame, presence));
+            bytes += size;
+            peakDepth = Math.max(peakDepth, entries.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next frame, or null if empty. */
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next frame, waiting up to the timeout; null on timeout or after close. */
+    ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True once if roster frames were coalesced away and the client needs a fresh snapshot. */
+    boolean takeRosterStale() {
+        lock.lock();
+        try {
+            boolean stale = rosterStale;
+            rosterStale = false;
+            return stale;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            entries.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Current depth, plus peak depth and dropped frames since the last call (which resets them). */
+    String stats() {
+        lock.lock();
+        try {
+            String s = "depth " + entries.size() + ", peak " + peakDepth + ", dropped " + dropped;
+            peakDepth = entries.size();
+            dropped = 0;
+            return s;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int peakDepth() {
+        lock.lock();
+        try {
+            return peakDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(int size) {
+        return entries.size() < maxFrames && bytes + size <= maxBytes;
+    }
+
+    private ByteBuffer removeFirst() {
+        Entry e = entries.pollFirst();
+        if (e == null) return null;
+        bytes -= e.frame.remaining();
+        return e.frame;
+    }
+
+    private void dropOldestUntil(int size) {
+        while (!entries.isEmpty() && !fits(size)) {
+            removeFirst();
+            dropped++;
+        }
+    }
+
+    private void dropPresence() {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.presence) {
+                it.remove();
+                bytes -= e.frame.remaining();
+                dropped++;
+                rosterStale = true;
+            }
+        }
+    }
+}
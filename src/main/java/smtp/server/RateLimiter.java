@@ -0,0 +1,80 @@
+package smtp.server;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: at most rate bytes per second, with at most one quantum saved up while idle
+ * (a larger burst lets the first of many transfers starting together run ahead of the rest).
+ * Callers take bytes before moving them (and give back what they did not use) or after.
+ * A take succeeds even when the bucket is empty: the bucket goes into debt and the caller
+ * sleeps, holding no lock, until its share has been paid back. Debts are paid off in the
+ * order they were taken, so transfers sharing a bucket and taking a quantum at a time take
+ * turns and split its rate evenly.
+ * The rate can be changed at any time and applies from the next request; 0 = unlimited.
+ */
+final class RateLimiter {
+
+    private static final long MIN_QUANTUM = 4 * 1024;
+    private static final long MAX_QUANTUM = 256 * 1024;
+
+    private volatile long rate;
+    // guarded by this; negative while requests wait to be paid
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    RateLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    long rate() {
+        return rate;
+    }
+
+    void setRate(long bytesPerSecond) {
+        rate = Math.max(0, bytesPerSecond);
+    }
+
+    /** The most one request may take right now; Long.MAX_VALUE when unlimited. */
+    long quantum() {
+        long r = rate;
+        return r == 0 ? Long.MAX_VALUE : quantum(r);
+    }
+
+    /**
+     * Take n bytes, going into debt if the bucket has fewer; returns how many nanoseconds the
+     * caller must wait before moving them (0 = now). Unlimited buckets never make anyone wait.
+     */
+    synchronized long take(long n) {
+        long r = rate;
+        if (n <= 0 || r == 0) return 0;
+        long now = System.nanoTime();
+        tokens = Math.min(quantum(r), tokens + (now - lastRefill) * r / 1e9);
+        lastRefill = now;
+        tokens -= n;
+        return tokens < 0 ? (long) (-tokens * 1e9 / r) : 0;
+    }
+
+    /** Give back bytes taken but not moved (a short read or write). */
+    synchronized void refund(long unused) {
+        long r = rate;
+        if (unused <= 0 || r == 0) return;
+        tokens = Math.min(quantum(r), tokens + unused);
+    }
+
+    /** Sleep the wait {@link #take} asked for, outside any lock. */
+    static void pause(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for bandwidth");
+        }
+    }
+
+    // about 1% of a second's worth per turn: small enough that 50 transfers all move every half second
+    private static long quantum(long r) {
+        return Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, r / 100));
+    }
+}
@@ -0,0 +1,54 @@
+package smtp.server;
+
+/**
+ * Tunable server settings, read once from system properties (-Dname=value).
+ */
+final class ServerConfig {
+
+    /** Number of selector threads serving control connections. */
+    static final int CONTROL_LOOPS = Integer.getInteger("smtp.control.loops",
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** nio | platform | virtual */
+    static final ExecutionMode CONTROL_MODE =
+            ExecutionMode.parse(System.getProperty("smtp.control.mode"), ExecutionMode.NIO);
+
+    /** platform | virtual (nio is not available for file transfers) */
+    static final ExecutionMode FILE_MODE = fileMode(System.getProperty("smtp.file.mode"));
+
+    /** Upper bound on concurrent connections in the thread-per-connection modes. */
+    static final int CONTROL_MAX_CONNECTIONS = Integer.getInteger("smtp.control.maxConnections", 10_000);
+    static final int FILE_MAX_CONNECTIONS = Integer.getInteger("smtp.file.maxConnections", 256);
+
+    /** How long stop() lets running file transfers finish before closing their sockets. */
+    static final long SHUTDOWN_GRACE_MILLIS = Long.getLong("smtp.shutdown.graceMillis", 5_000);
+
+    /** Per-client outbound queue bounds and what to do when a slow client fills it. */
+    static final int OUTBOUND_MAX_FRAMES = Integer.getInteger("smtp.outbound.maxFrames", 1_024);
+    static final int OUTBOUND_MAX_BYTES = Integer.getInteger("smtp.outbound.maxBytes", 1 << 20);
+    /** drop-oldest | disconnect | coalesce */
+    static final OutboundQueue.Overflow OUTBOUND_OVERFLOW =
+            OutboundQueue.Overflow.parse(System.getProperty("smtp.outbound.overflow"), OutboundQueue.Overflow.COALESCE);
+
+    /**
+     * Most bytes / frames one control connection writes per batch (one writev on the NIO
+     * loop, one flush for the blocking writer). Caps how long one busy client can hold
+     * the writer before the others get their turn.
+     */
+    static final int CONTROL_BATCH_BYTES = Integer.getInteger("smtp.control.batchBytes", 64 * 1024);
+    static final int CONTROL_BATCH_FRAMES = Integer.getInteger("smtp.control.batchFrames", 64);
+
+    /** Log the deepest outbound queues every this many seconds (0 = never). */
+    static final int QUEUE_STATS_SECONDS = Integer.getInteger("smtp.stats.queueSeconds", 30);
+
+    /** Log PM routing latency every this many messages (0 = never). */
+    static final int PM_STATS_INTERVAL = Integer.getInteger("smtp.stats.pmInterval", 1_000);
+
+    private static ExecutionMode fileMode(String value) {
+        ExecutionMode mode = ExecutionMode.parse(value, ExecutionMode.VIRTUAL);
+        return mode == ExecutionMode.NIO ? ExecutionMode.VIRTUAL : mode;
+    }
+
+    private ServerConfig() {
+    }
+}
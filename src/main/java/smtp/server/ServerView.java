@@ -0,0 +1,22 @@
+package smtp.server;
+
+/**
+ * What FileServer tells whoever shows it: FileServerUI, or a stub where there is no screen
+ * (tests). Called from server threads, often under a server lock: implementations only queue
+ * the change (e.g. with SwingUtilities.invokeLater) and return.
+ */
+public interface ServerView {
+
+    void log(String s);
+
+    void clientJoined(String name);
+
+    void clientLeft(String name);
+
+    void fileAdded(String name);
+
+    void fileRemoved(String name);
+
+    /** Reload the whole file list from the server's file store. */
+    void refreshFileList();
+}
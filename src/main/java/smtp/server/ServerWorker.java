@@ -1,28 +1,42 @@
 package smtp.server;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.Socket;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
- * Worker xử lý kết nối control (CHAT) cho 1 client.
- * Protocol:
+ * Xử lý protocol control (CHAT) cho 1 client. Không giữ thread riêng:
+ * transport ({@link ControlConnection}) gọi {@link #onMessage(String)} cho mỗi frame nhận được,
+ * hoặc {@link #onFrame(FrameCodec.Frame)} sau khi client chuyển sang binary framing.
+ *
+ * Client mới gửi writeUTF({@link FrameCodec#HANDSHAKE}) rồi HELLO, từ đó dùng binary frames
+ * (xem FrameCodec). Client cũ dùng protocol writeUTF:
  *  - client gửi clientName (writeUTF) ngay sau connect
- *  - server gửi messages (writeUTF)
+ *  - server gửi messages (writeUTF):
+ *      - "CLIENTS|a,b,..." -> full list, cho client cũ (chưa gửi SYNC), sau mỗi thay đổi
+ *      - "ROSTER|version|a,b,..." -> snapshot trả lời SYNC
+ *      - "JOIN|version|name", "LEAVE|version|name" -> delta sau SYNC; version tăng 1 mỗi lần,
+ *        client thấy nhảy version thì gửi lại SYNC
+ *      - "PM|from|message"
  *  - client gửi commands dạng UTF:
  *      - "PM|target|message" -> private message
- *      - (other commands can be added)
+ *      - "SYNC" -> chuyển sang presence delta, nhận ROSTER
+ *      - "QUIT" -> close connection
  */
-public class ServerWorker extends Thread {
+public class ServerWorker {
 
-    private final Socket socket;
+    private final ControlConnection connection;
     private final FileServer server;
-    private DataInputStream dis;
-    private DataOutputStream dos;
-    private String clientName = "unknown";
+    private volatile String clientName = "unknown";
+    private boolean registered;
+    // set once the client sent SYNC: it gets JOIN/LEAVE deltas instead of full CLIENTS lists
+    private volatile boolean presenceDeltas;
+    // set by the handshake; binary clients always get deltas
+    private volatile boolean binary;
 
-    public ServerWorker(Socket socket, FileServer server) {
-        this.socket = socket;
+    ServerWorker(ControlConnection connection, FileServer server) {
+        this.connection = connection;
         this.server = server;
     }
 
@@ -30,47 +44,117 @@ public class ServerWorker extends Thread {
         return clientName;
     }
 
+    boolean wantsPresenceDeltas() {
+        return presenceDeltas;
+    }
+
+    void setPresenceDeltas(boolean presenceDeltas) {
+        this.presenceDeltas = presenceDeltas;
+    }
+
     public void send(String utf) {
-        try {
-            dos.writeUTF(utf);
-            dos.flush();
-        } catch (Exception ignored) {}
+        send(utf, false);
     }
 
-    @Override
-    public void run() {
+    void send(String utf, boolean presence) {
         try {
-            dis = new DataInputStream(socket.getInputStream());
-            dos = new DataOutputStream(socket.getOutputStream());
+            connection.write(UtfCodec.encode(utf), presence);
+        } catch (UTFDataFormatException e) {
+            server.getUi().log("Message to " + clientName + " too long, dropped");
+        }
+    }
+
+    /** Send a roster frame encoded once for many recipients (see {@link UtfCodec#encode(String)}). */
+    void sendPresence(ByteBuffer encoded) {
+        connection.write(encoded.duplicate(), true);
+    }
+
+    /** Send a roster delta encoded once per framing for many recipients; null skips that framing. */
+    void sendPresence(ByteBuffer utf, ByteBuffer frame) {
+        ByteBuffer encoded = binary ? frame : utf;
+        if (encoded != null) connection.write(encoded.duplicate(), true);
+    }
+
+    void sendRoster(long version, List<String> names) {
+        if (binary) connection.write(FrameCodec.encodeRoster(version, names), true);
+        else send("ROSTER|" + version + "|" + String.join(",", names), true);
+    }
+
+    void sendPrivate(String from, String message) {
+        if (binary) connection.write(FrameCodec.encode(FrameCodec.PM, from, message), false);
+        else send("PM|" + from + "|" + message);
+    }
 
+    OutboundQueue outbound() {
+        return connection.outbound();
+    }
+
+    /** Called by the transport once its queue has drained after roster frames were coalesced away. */
+    void resyncPresence() {
+        if (registered) server.resyncPresence(this);
+    }
+
+    void onMessage(String cmd) {
+        if (!registered) {
+            if (cmd.equals(FrameCodec.HANDSHAKE)) {
+                binary = true;
+                connection.switchToBinary();
+                return;
+            }
             // first message from client is its name
-            clientName = dis.readUTF();
+            clientName = cmd;
+            registered = true;
             server.addClient(this);
+            return;
+        }
 
-            // listen for chat commands
-            while (true) {
-                String cmd = dis.readUTF(); // blocks
-                if (cmd == null) break;
-                if (cmd.startsWith("PM|")) {
-                    // PM|target|message
-                    String[] p = cmd.split("\\|", 3);
-                    if (p.length >= 3) {
-                        String target = p[1];
-                        String message = p[2];
-                        server.sendPrivate(clientName, target, message);
-                    }
-                } else if (cmd.equalsIgnoreCase("QUIT")) {
-                    break;
-                } else {
-                    // unknown - ignore or log
-                    server.getUi().log("Unknown cmd from " + clientName + ": " + cmd);
-                }
+        if (cmd.startsWith("PM|")) {
+            // PM|target|message
+            int sep = cmd.indexOf('|', 3);
+            if (sep > 0) {
+                server.sendPrivate(clientName, cmd.substring(3, sep), cmd.substring(sep + 1));
             }
-        } catch (Exception e) {
-            server.getUi().log("Client disconnected: " + clientName);
-        } finally {
-            try { socket.close(); } catch (Exception ignored) {}
-            server.removeClient(this);
+        } else if (cmd.equals("SYNC")) {
+            server.syncPresence(this);
+        } else if (cmd.equalsIgnoreCase("QUIT")) {
+            connection.close();
+        } else {
+            // unknown - ignore or log
+            server.getUi().log("Unknown cmd from " + clientName + ": " + cmd);
+        }
+    }
+
+    void onFrame(FrameCodec.Frame frame) throws ProtocolException {
+        if (!registered && frame.type() != FrameCodec.HELLO) {
+            throw new ProtocolException("expected HELLO, got frame type " + frame.type());
         }
+        switch (frame.type()) {
+            case FrameCodec.HELLO -> {
+                if (registered) return;
+                long version = Math.min(frame.nextNumber(), FrameCodec.VERSION);
+                clientName = frame.nextString();
+                registered = true;
+                presenceDeltas = true;
+                connection.write(FrameCodec.encode(FrameCodec.HELLO, version, null), false);
+                server.addClient(this);
+            }
+            case FrameCodec.PM -> {
+                String target = frame.nextString();
+                server.sendPrivate(clientName, target, frame.nextString());
+            }
+            case FrameCodec.SYNC -> server.syncPresence(this);
+            case FrameCodec.QUIT -> connection.close();
+            default -> server.getUi().log("Unknown frame type " + frame.type() + " from " + clientName);
+        }
+    }
+
+    void onSlowConsumer() {
+        server.getUi().log("Outbound queue full, disconnecting slow client: " + clientName);
+    }
+
+    void onClosed() {
+        if (!registered) return;
+        server.getUi().log("Client disconnected: " + clientName);
+        server.removeClient(this);
     }
 }
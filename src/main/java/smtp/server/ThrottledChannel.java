@@ -0,0 +1,124 @@
+package smtp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A file-port connection whose reads and writes draw from the client's bucket and the global
+ * bucket of their direction (see Bandwidth). Until the client has named itself only the global
+ * limits apply. {@link ChannelIO#sendFile} recognises it and keeps using sendfile, a quantum at a time.
+ */
+final class ThrottledChannel implements ByteChannel {
+
+    private final SocketChannel socket;
+    private final Bandwidth bandwidth;
+    private volatile Bandwidth.Client client;
+
+    ThrottledChannel(SocketChannel socket, Bandwidth bandwidth) {
+        this.socket = socket;
+        this.bandwidth = bandwidth;
+    }
+
+    /** Charge this connection to clientName from now on. */
+    void setClient(String clientName) {
+        client = bandwidth.client(clientName);
+    }
+
+    // read first and pay afterwards: a session waiting for its next request holds no bandwidth
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) return socket.read(dst);
+        long max = Math.min(dst.remaining(), quantum(Bandwidth.Direction.UP));
+        int limit = dst.limit();
+        dst.limit(dst.position() + (int) max);
+        int n;
+        try {
+            n = socket.read(dst);
+        } finally {
+            dst.limit(limit);
+        }
+        if (n > 0) take(Bandwidth.Direction.UP, n);
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!src.hasRemaining()) return 0;
+        long grant = acquire(Bandwidth.Direction.DOWN, src.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + (int) grant);
+        int n;
+        try {
+            n = socket.write(src);
+        } finally {
+            src.limit(limit);
+        }
+        refund(Bandwidth.Direction.DOWN, grant - n);
+        return n;
+    }
+
+    /** file.transferTo onto the socket (sendfile), for at most as many bytes as the buckets allow. */
+    long transferFrom(FileChannel file, long position, long count) throws IOException {
+        long grant = acquire(Bandwidth.Direction.DOWN, count);
+        long n = file.transferTo(position, grant, socket);
+        refund(Bandwidth.Direction.DOWN, grant - n);
+        return n;
+    }
+
+    // at most a quantum, taken from both buckets at once: waiting for the client's bucket and
+    // then the global one would charge a throttled client both waits
+    private long acquire(Bandwidth.Direction d, long max) throws IOException {
+        long grant = Math.min(max, quantum(d));
+        take(d, grant);
+        return grant;
+    }
+
+    private void take(Bandwidth.Direction d, long n) throws IOException {
+        RateLimiter own = own(d);
+        RateLimiter global = bandwidth.global(d);
+        long wait = global.take(n);
+        if (own != null) wait = Math.max(wait, own.take(n));
+        try {
+            RateLimiter.pause(wait);
+        } catch (IOException e) {
+            refund(d, n);
+            throw e;
+        }
+    }
+
+    // the larger quantum of the limited buckets: taking a small one from a busy global bucket
+    // would make a throttled client sit through the global queue once per small quantum
+    private long quantum(Bandwidth.Direction d) {
+        RateLimiter own = own(d);
+        long global = bandwidth.global(d).rate() == 0 ? 0 : bandwidth.global(d).quantum();
+        long mine = own == null || own.rate() == 0 ? 0 : own.quantum();
+        long q = Math.max(global, mine);
+        return q == 0 ? Long.MAX_VALUE : q;
+    }
+
+    private void refund(Bandwidth.Direction d, long unused) {
+        if (unused <= 0) return;
+        RateLimiter own = own(d);
+        if (own != null) own.refund(unused);
+        bandwidth.global(d).refund(unused);
+    }
+
+    // null until the client has named itself
+    private RateLimiter own(Bandwidth.Direction d) {
+        Bandwidth.Client c = client;
+        return c == null ? null : (d == Bandwidth.Direction.DOWN ? c.down : c.up);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
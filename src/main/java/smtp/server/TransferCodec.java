@@ -0,0 +1,21 @@
+package smtp.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A streaming codec for file bodies on the file port (see Compression). Implementations are
+ * registered with {@link Compression#register} under their name, which is what the two sides
+ * negotiate with.
+ */
+public interface TransferCodec {
+
+    /** Name used in the protocol; "identity" is reserved for "no codec". */
+    String name();
+
+    /** Stream that encodes into out; closing it finishes the encoding and closes out. */
+    OutputStream compress(OutputStream out);
+
+    /** Stream that decodes what {@link #compress} wrote, reading from in. */
+    InputStream decompress(InputStream in);
+}
@@ -0,0 +1,80 @@
+package smtp.server;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the DataOutputStream.writeUTF format (2-byte length + modified UTF-8)
+ * directly on ByteBuffers, so the non-blocking server stays wire compatible with clients
+ * that use DataInputStream / DataOutputStream.
+ */
+final class UtfCodec {
+
+    static final int MAX_LENGTH = 0xFFFF;
+
+    private UtfCodec() {
+    }
+
+    /** Returns a buffer ready for reading: length prefix followed by the encoded string. */
+    static ByteBuffer encode(String s) throws UTFDataFormatException {
+        int strlen = s.length();
+        int utflen = 0;
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) utflen++;
+            else if (c > 0x07FF) utflen += 3;
+            else utflen += 2;
+        }
+        if (utflen > MAX_LENGTH) {
+            throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(utflen + 2);
+        buf.putShort((short) utflen);
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put((byte) c);
+            } else if (c > 0x07FF) {
+                buf.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /** Decodes utflen bytes starting at the buffer's position (length prefix already consumed). */
+    static String decode(ByteBuffer in, int utflen) throws UTFDataFormatException {
+        char[] chars = new char[utflen];
+        int count = 0;
+        int end = in.position() + utflen;
+        while (in.position() < end) {
+            int c = in.get() & 0xFF;
+            switch (c >> 4) {
+                case 0, 1, 2, 3, 4, 5, 6, 7 -> chars[count++] = (char) c;
+                case 12, 13 -> {
+                    if (in.position() + 1 > end) throw new UTFDataFormatException("partial character at end");
+                    int c2 = in.get();
+                    if ((c2 & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input");
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                }
+                case 14 -> {
+                    if (in.position() + 2 > end) throw new UTFDataFormatException("partial character at end");
+                    int c2 = in.get();
+                    int c3 = in.get();
+                    if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input");
+                    }
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                }
+                default -> throw new UTFDataFormatException("malformed input");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,146 @@
+package smtp.mail;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Many threads writing and reading at once: every insert gets its own id, readers never see
+ * SQLITE_BUSY or a half-written state, and nothing throws.
+ */
+class ConnectionPoolStressTest {
+
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+    private static final int INSERTS = 500;
+
+    @Test
+    void concurrentInsertsGetDistinctIds(@TempDir Path dir) throws Exception {
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + dir.resolve("stress.db"), READERS, conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA busy_timeout = 5000");
+            }
+        });
+        pool.write(db -> {
+            try (Statement stmt = db.connection.createStatement()) {
+                return stmt.executeUpdate("CREATE TABLE items (id INTEGER PRIMARY KEY AUTOINCREMENT, owner TEXT)");
+            }
+        });
+
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            String owner = "writer" + w;
+            writers.add(start(errors, () -> {
+                go.await();
+                for (int i = 0; i < INSERTS; i++) {
+                    int id = pool.write(db -> {
+                        PreparedStatement pstmt = db.prepare("INSERT INTO items (owner) VALUES (?)");
+                        pstmt.setString(1, owner);
+                        pstmt.executeUpdate();
+                        try (ResultSet rs = db.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                            return rs.getInt(1);
+                        }
+                    });
+                    assertTrue(ids.add(id), "id " + id + " handed out twice");
+                }
+            }));
+        }
+        // more readers than reader connections, so some wait for one
+        for (int r = 0; r < READERS * 2; r++) {
+            readers.add(start(errors, () -> {
+                go.await();
+                int last = 0;
+                while (writing.get()) {
+                    int count = pool.read(ConnectionPoolStressTest::count);
+                    assertTrue(count >= last, "count went back from " + last + " to " + count);
+                    last = count;
+                }
+            }));
+        }
+
+        go.countDown();
+        for (Thread t : writers) t.join();
+        writing.set(false);
+        for (Thread t : readers) t.join();
+        try {
+            assertTrue(errors.isEmpty(), () -> "thrown: " + errors);
+            assertEquals(WRITERS * INSERTS, ids.size());
+            assertEquals(WRITERS * INSERTS, (int) pool.read(ConnectionPoolStressTest::count));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    void concurrentSendEmailGivesEachEmailItsOwnId() throws Exception {
+        MailDatabase mail = MailDatabase.getInstance();
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        String run = Long.toString(System.nanoTime(), 36);
+        List<Thread> senders = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int sender = w;
+            senders.add(start(errors, () -> {
+                for (int i = 0; i < 50; i++) {
+                    Email email = new Email("user1", "user2", run + " " + sender + "/" + i, "body");
+                    assertTrue(mail.sendEmail(email), "sendEmail failed");
+                    assertTrue(ids.add(email.getId()), "id " + email.getId() + " handed out twice");
+                }
+            }));
+        }
+        for (Thread t : senders) t.join();
+
+        assertTrue(errors.isEmpty(), () -> "thrown: " + errors);
+        assertEquals(WRITERS * 50, ids.size());
+        for (int id : ids) {
+            Email email = mail.getEmailById(id);
+            assertNotNull(email, "email " + id);
+            assertTrue(email.getSubject().startsWith(run + " "), email.getSubject());
+        }
+    }
+
+    private static int count(ConnectionPool.PooledConnection db) throws SQLException {
+        try (ResultSet rs = db.prepare("SELECT COUNT(*) FROM items").executeQuery()) {
+            return rs.getInt(1);
+        }
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static Thread start(Queue<Throwable> errors, Body body) {
+        Thread t = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+}
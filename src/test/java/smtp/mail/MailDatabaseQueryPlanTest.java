@@ -0,0 +1,75 @@
+package smtp.mail;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The mailbox queries of MailDatabase must be answered from the indexes of migration 2,
+ * in index order: a full scan or a sort would make each page cost the whole mailbox.
+ * The SQL is copied from MailDatabase; keep both in step.
+ */
+class MailDatabaseQueryPlanTest {
+
+    private static final String HEADERS = "SELECT id, sender, recipient, subject, sent_date, is_read FROM emails WHERE ";
+
+    @BeforeAll
+    static void migrate() {
+        MailDatabase.getInstance(); // creates mail_data/emails.db and runs the migrations
+    }
+
+    @Test
+    void inboxPagesUseRecipientIndexWithoutSorting() throws SQLException {
+        String first = plan(HEADERS + "recipient = ? ORDER BY sent_date DESC, id DESC LIMIT ?");
+        String next = plan(HEADERS + "recipient = ? AND (sent_date, id) < (?, ?) ORDER BY sent_date DESC, id DESC LIMIT ?");
+        for (String plan : new String[] {first, next}) {
+            assertTrue(plan.contains("idx_emails_recipient_date"), plan);
+            assertFalse(plan.contains("TEMP B-TREE"), plan);
+        }
+    }
+
+    @Test
+    void sentPagesUseSenderIndexWithoutSorting() throws SQLException {
+        String first = plan(HEADERS + "sender = ? ORDER BY sent_date DESC, id DESC LIMIT ?");
+        String next = plan(HEADERS + "sender = ? AND (sent_date, id) < (?, ?) ORDER BY sent_date DESC, id DESC LIMIT ?");
+        for (String plan : new String[] {first, next}) {
+            assertTrue(plan.contains("idx_emails_sender_date"), plan);
+            assertFalse(plan.contains("TEMP B-TREE"), plan);
+        }
+    }
+
+    @Test
+    void unreadCountReadsOnlyThePartialIndex() throws SQLException {
+        String plan = plan("SELECT COUNT(*) FROM emails WHERE recipient = ? AND is_read = 0");
+        assertTrue(plan.contains("COVERING INDEX idx_emails_unread"), plan);
+    }
+
+    @Test
+    void attachmentsOfAnEmailUseTheirIndex() throws SQLException {
+        String plan = plan("SELECT filepath FROM attachments WHERE email_id = ? ORDER BY id");
+        assertTrue(plan.contains("idx_attachments_email"), plan);
+        assertFalse(plan.contains("TEMP B-TREE"), plan);
+    }
+
+    // the detail column of EXPLAIN QUERY PLAN, one line per step
+    private static String plan(String sql) throws SQLException {
+        StringJoiner steps = new StringJoiner("\n");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:mail_data/emails.db");
+             PreparedStatement pstmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                steps.add(rs.getString("detail"));
+            }
+        }
+        return steps.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package smtp.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Load test of the control port: thousands of connected clients that say nothing cost the
+ * server no thread each (they sit in the ControlEventLoop selectors), and a private message
+ * still gets through among them. Needs ports 5001 and 6000 free.
+ */
+class IdleControlConnectionsTest {
+
+    private static final int CLIENTS = Integer.getInteger("smtp.test.idleClients", 2000);
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private final AtomicInteger joined = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+    private FileServer server;
+
+    @AfterEach
+    void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+        if (server != null) server.stop();
+    }
+
+    @Test
+    void idleClientsTakeNoThreadAndMessagesStillFlow() throws Exception {
+        assertEquals(ExecutionMode.NIO, ServerConfig.CONTROL_MODE, "run with the default -Dsmtp.control.mode");
+        server = new FileServer(new CountingView());
+        server.start();
+        Socket first = connect("idle0");
+        waitFor(() -> joined.get() == 1, "first client to join");
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        for (int i = 1; i < CLIENTS; i++) connect("idle" + i);
+        waitFor(() -> joined.get() == CLIENTS, "all clients to join");
+
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        assertTrue(threadsAfter - threadsBefore < 10,
+                CLIENTS + " idle clients took " + (threadsAfter - threadsBefore) + " threads");
+
+        Socket last = sockets.get(sockets.size() - 1);
+        DataOutputStream out = new DataOutputStream(last.getOutputStream());
+        out.writeUTF("PM|idle0|still there?");
+        out.flush();
+        // idle0 got a JOIN for everyone who came after it first
+        first.setSoTimeout((int) TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(first.getInputStream()));
+        String msg;
+        do {
+            msg = in.readUTF();
+        } while (!msg.startsWith("PM|"));
+        assertEquals("PM|idle" + (CLIENTS - 1) + "|still there?", msg);
+    }
+
+    // a legacy client asking for presence deltas right away, so joins cost each client one line
+    private Socket connect(String name) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress("localhost", FileServer.CONTROL_PORT));
+            } catch (ConnectException e) {
+                s.close();
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50); // the control server is still starting
+                continue;
+            }
+            sockets.add(s);
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeUTF(name);
+            out.writeUTF("SYNC");
+            out.flush();
+            return s;
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    private final class CountingView implements ServerView {
+        @Override
+        public void log(String s) {
+        }
+
+        @Override
+        public void clientJoined(String name) {
+            joined.incrementAndGet();
+        }
+
+        @Override
+        public void clientLeft(String name) {
+        }
+
+        @Override
+        public void fileAdded(String name) {
+        }
+
+        @Override
+        public void fileRemoved(String name) {
+        }
+
+        @Override
+        public void refreshFileList() {
+        }
+    }
+}